@@ -32,6 +32,11 @@
  * because there is a bug in GIMP's implementation that shifts the results of the blurring 
  * to the right of the image when using more than 3 scales.
  *
+ * Supported are RGB images (MSRCR) and 8-bit, 16-bit and 32-bit grayscale
+ * images (MSR, without color restoration). 8-bit indexed color images and
+ * images with an inverting LUT have to be converted first, as their pixel
+ * values are not intensities.
+ *
  * Based on:
  * MSRCR Retinex
  * (Multi-Scale Retinex with Color Restoration)
@@ -65,13 +70,22 @@
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
-import ij.gui.NewImage;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Retinex_ implements PlugIn {
 	/*Global vars*/
@@ -87,6 +101,11 @@ public class Retinex_ implements PlugIn {
 	double [] b= new double[4];
 
 	float dynamicValue=0f;
+	/*
+	* Use the recursive Gaussian instead of ImageJ's blur: its cost does
+	* not depend on the scale, which pays off for the large scales.
+	*/
+	boolean fastBlur=false;
 	public static final int RETINEX_UNIFORM=0, RETINEX_LOW=1, RETINEX_HIGH=2;
 	public static final int MAX_RETINEX_SCALES = 8;
 	public static final int MIN_GAUSSIAN_SCALE = 16;
@@ -99,11 +118,15 @@ public class Retinex_ implements PlugIn {
 		// 1 - Obtain the currently active image:
 		ImagePlus imp = IJ.getImage();
 		if (null == imp) return;
-		int stackSize = imp.getStackSize();
- 		if(imp.getBitDepth() != 24) {
-			IJ.showMessage("Only RGB images are supported.");
+		if (imp.getType() == ImagePlus.COLOR_256) {
+			IJ.showMessage("8-bit color images are not supported; convert them to RGB first.");
+			return;
+		}
+		if (imp.isInvertedLut()) {
+			IJ.showMessage("Images with an inverting LUT are not supported; invert the image and the LUT first.");
 			return;
 		}
+		int stackSize = imp.getStackSize();
 		// 2 - Ask for parameters:
 		GenericDialog gd = new GenericDialog("Retinex params", IJ.getInstance());
 
@@ -112,13 +135,16 @@ public class Retinex_ implements PlugIn {
 		gd.addSlider("Scale:", 16.0, 250.0, 240.0);
 		gd.addSlider("Scale_division:", 1.0, 8.0, 3.0);
 		gd.addSlider ("Dynamic:",0.05, 4.0, 1.2);
+		gd.addCheckbox("Fast (recursive) Gaussian", false);
 //		gd.addMessage("Options");
 //		gd.addSlider("Alpha:", 0, 255.0, 128);
 //		gd.addSlider("Gain:", 0.001, 1000.0, 1.0);
 //		gd.addSlider("Offset:", 0, 255, 0);
 
-		if (stackSize>1) 
+		if (stackSize>1) {
 			gd.addCheckbox("Stack",false);
+			gd.addCheckbox("Normalize_over_whole_stack",false);
+		}
 
 		gd.showDialog();
 		if (gd.wasCanceled())
@@ -130,28 +156,25 @@ public class Retinex_ implements PlugIn {
 		scaleValue= (int)gd.getNextNumber();
 		scaleDivValue= (int)gd.getNextNumber();
 		dynamicValue= (float)gd.getNextNumber();
+		fastBlur= gd.getNextBoolean();
 
 //		alpha= (int)gd.getNextNumber();
 //		gain= (float)gd.getNextNumber();
 //		offset= (int)gd.getNextNumber();
 
-		boolean doIstack=false;
-		if (stackSize>1) 
+		boolean doIstack=false, global=false;
+		if (stackSize>1) {
 			 doIstack = gd.getNextBoolean ();
+			 global = gd.getNextBoolean ();
+		}
 
 		// 4 - Execute!
 		Object[] result=null;
 		if (doIstack) {
-			for (int j=1; j<=stackSize; j++){
-				imp.setSlice(j);
-				 result = exec(imp, scaleValue, scaleDivValue, levelValue, dynamicValue);
-				if(null!=result){
-					ImagePlus scaled = (ImagePlus) result[1];
-					scaled.show();
-				}
-			}
-			imp.setSlice(1);
-			IJ.run(imp, "Images to Stack", "name=Stack_Retinex title=Retinex_");
+			ImagePlus scaled = execStack(imp, scaleValue, scaleDivValue, levelValue, dynamicValue, global);
+			if (null!=scaled)
+				scaled.show();
+			return;
 		}
 		else 
 			 result = exec(imp, scaleValue, scaleDivValue, levelValue, dynamicValue);
@@ -165,12 +188,10 @@ public class Retinex_ implements PlugIn {
 
 	public Object[] exec(ImagePlus imp, int scale, int scaleDiv, int level, float dynamic){
 
-		// Assumes an RGB image, we do not test this
 		IJ.showStatus("Performing Retinex..."+"Scale:"+ scale+"  Scale Div:"+ scaleDiv+"  Dynamic:"+dynamic);
 		IJ.showProgress(0.0);
 		ImageProcessor ip = imp.getProcessor();
-		int width, height, i, i3, offset, c;
-		int[] inputPixels;
+		int width, height;
 
 		//Using GIMP default params
 		//rvals = new RetinexParams(240, 3, RETINEX_UNIFORM, 1.2f);
@@ -181,77 +202,179 @@ public class Retinex_ implements PlugIn {
 		width = ip.getWidth();
 		height = ip.getHeight();
 
-		inputPixels= new int[3*height*width];
-
-		for (int row = 0; row < height; row++){
-			offset = row*width;
-			for (int col = 0; col < width; col++) {
-					i = (offset + col) * 3;
-					c = ip.get(col, row);
-					inputPixels[i] = (int)(c&0x0000ff);//B
-					inputPixels[i+1] = (int)((c&0x00ff00)>>8);//G
-					inputPixels[i+2] = (int)((c&0xff0000)>>16);//R
-			}
-		}
-
 		IJ.showProgress(0.2);
 		//Main Process
 		try{
-			inputPixels=MSRCR(inputPixels, width, height,3);
-			//Building an array for showing the output
-			int[] output= new int[height*width];
-			for (int row = 0; row < height; row++){
-				offset = row*width;
-				for (int col = 0; col < width; col++) {
-					i = offset + col;
-					i3 = i * 3;
-					output[i] = ((inputPixels[i3+2]& 0xff)<<16)+((inputPixels[i3+1]& 0xff)<<8) + (inputPixels[i3]& 0xff);
-				}        
-			}
-			ImagePlus imProc= NewImage.createRGBImage("Retinex_", width, height, 1, NewImage.FILL_BLACK);
-			ImageProcessor imProcP = imProc.getProcessor();
+			// the pixels are read directly, and the result is written directly
+			Object output=retinex(ip.getPixels(), width, height);
+			ImageProcessor imProcP = ip.createProcessor(width, height);
 			imProcP.setPixels(output);
+			if (output instanceof float[])
+				imProcP.setMinAndMax(mean - cvar*var, mean + cvar*var);
+			else
+				imProcP.resetMinAndMax();
+			ImagePlus imProc= new ImagePlus("Retinex_", imProcP);
 			IJ.showProgress(1.0);
 			return new Object[]{"Retinex_"+imp.getTitle(), imProc};
 		}catch(Exception e){IJ.log("Error: "+ e.getMessage()); return null;}
 	}
 
+	/*
+	* Processes all slices of a stack (or hyperstack) in parallel, into a
+	* single new stack of the same dimensions. If global is set, mean and
+	* variance for the dynamic range are computed over the whole stack,
+	* so that the brightness does not change from slice to slice; as the
+	* log ratios of all slices would not fit into memory, they are then
+	* computed twice, first to collect the statistics.
+	*/
+	public ImagePlus execStack(final ImagePlus imp, int scale, int scaleDiv, int level, float dynamic, final boolean global){
+		IJ.showStatus("Performing Retinex..."+"Scale:"+ scale+"  Scale Div:"+ scaleDiv+"  Dynamic:"+dynamic);
+		IJ.showProgress(0.0);
+		this.scale= scale;
+		this.nscales= scaleDiv;
+		this.scales_mode=level;
+		this.cvar=dynamic;
+		RetinexScales = retinex_scales_distribution( RetinexScales,this.nscales, this.scales_mode, this.scale );
+
+		final ImageStack stack = imp.getStack();
+		final int width = stack.getWidth(), height = stack.getHeight();
+		final int size = stack.getSize();
+		final ImageStack output = new ImageStack(width, height, size);
+		final int passes = global ? 2 : 1;
+		final double[][] moments = new double[size + 1][];
+		final float[] stats = new float[2];
+		final AtomicInteger done = new AtomicInteger();
+		try{
+			for (int pass = 0; pass < passes; pass++) {
+				final boolean collect = global && pass == 0;
+				final AtomicInteger next = new AtomicInteger(1);
+				List<Runnable> tasks = new ArrayList<Runnable>();
+				int threads = Math.min(Prefs.getThreads(), size);
+				for (int t = 0; t < threads; t++)
+					tasks.add(new Runnable() {
+						public void run() {
+							for (int n = next.getAndIncrement(); n <= size; n = next.getAndIncrement()) {
+								Object src;
+								// virtual stacks need not be thread-safe
+								synchronized (stack) {
+									src = stack.getProcessor(n).getPixels();
+								}
+								float[][] planes = restore(src, width, height, 1);
+								if (collect)
+									moments[n] = moments(planes, width * height, 1);
+								else {
+									float[] meanVar = global ? stats : mean_var(planes, width * height);
+									output.setPixels(to_pixels(planes, width * height, meanVar[0], meanVar[1], src), n);
+									output.setSliceLabel(stack.getSliceLabel(n), n);
+								}
+								IJ.showProgress(done.incrementAndGet(), passes * size);
+							}
+						}
+					});
+				run_all(tasks, threads);
+				if (collect) {
+					// combined in slice order, independent of the scheduling
+					double[] total = new double[3];
+					for (int n = 1; n <= size; n++)
+						merge_moments(total, moments[n]);
+					System.arraycopy(mean_var(total), 0, stats, 0, 2);
+				}
+			}
+		}catch(Exception e){IJ.log("Error: "+ e.getMessage()); return null;}
+
+		ImagePlus result = new ImagePlus("Retinex_"+imp.getTitle(), output);
+		result.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		if (imp.isHyperStack())
+			result.setOpenAsHyperStack(true);
+		result.setCalibration(imp.getCalibration());
+		if (global)
+			result.setDisplayRange(stats[0] - cvar*stats[1], stats[0] + cvar*stats[1]);
+		else
+			result.resetDisplayRange();
+		IJ.showProgress(1.0);
+		return result;
+	}
+
+	/*
+	* Runs the tasks on a pool of the given number of threads, or in the
+	* calling thread if that number is 1.
+	*/
+	static void run_all(List<Runnable> tasks, int threads) {
+		if (threads <= 1) {
+			for (Runnable task : tasks)
+				task.run();
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Runnable task : tasks)
+			futures.add(executor.submit(task));
+		executor.shutdown();
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
 	 float clip(float val, int minv, int maxv){
 		return (( val = (val < minv ? minv : val ) ) > maxv ? maxv : val );
 	}
 
 	/*
 	* MSRCR = MultiScale Retinex with Color Restoration
+	*
+	* The image is processed as one float plane per channel (0 = blue,
+	* 1 = green, 2 = red), read from and written to packed RGB pixels.
+	* The planes hold the cumulated log ratios and are then reused for
+	* the color restoration, so that besides input and output only three
+	* planes plus one working buffer per channel being blurred are needed.
+	*
+	* Grayscale (8-bit, 16-bit and float) pixels are processed as a single
+	* channel, without color restoration (i.e. plain MSR); the result has
+	* the same type as the input.
 	*/
-	int [] MSRCR(int[] src, int width, int height, int bytes){
-		int scale, row, col;
-		int i, j;
-		int size;
-		int pos;
-		int channel;
-		float []dst;
-		float []in, out;
-		float []pdst;
-		float []psrc;
-		int channelsize;
-		float weight;
-		float mini, range, maxi;
-		float progress=0.2f;
-		/* Allocating all the memory needed for the algorithm*/
-		size=width*height*bytes;
-		dst = new float[size];
-
-		channelsize = width*height;
-
-		in= new float[channelsize];
-		out = new float [channelsize];
-		float [][]BGR= new float[3][channelsize];
+	Object retinex(final Object src, final int width, final int height){
 		/*
 		* Calculate the scales of filtering according to the
 		* number of filter and their distribution.
 		*/
 		RetinexScales = retinex_scales_distribution( RetinexScales,this.nscales, this.scales_mode, this.scale );
 
+		float [][]dst = restore(src, width, height, Prefs.getThreads());
+		compute_mean_var(dst, width*height);
+		return to_pixels(dst, width*height, mean, var, src);
+	}
+
+	int [] MSRCR(final int[] src, final int width, final int height){
+		return (int[])retinex(src, width, height);
+	}
+
+	/*
+	* The log ratios, cumulated over all scales, after color restoration
+	* (for RGB pixels); the channels are processed concurrently if
+	* threads > 1.
+	*/
+	float [][] restore(final Object pixels, final int width, final int height, int threads){
+		int scale;
+		int i, j;
+		int channel;
+		float [][]dst;
+		final int channelsize = width*height;
+		float weight;
+		/* Allocating all the memory needed for the algorithm*/
+		final Channel[] channels = getChannels(pixels);
+		dst = new float[channels.length][channelsize];
+
 		/*
 		Filtering according to the various scales.
 		Summarize the results of the various filters according to a
@@ -262,32 +385,54 @@ public class Retinex_ implements PlugIn {
 		* Here we changed the recursive filtering algorithm for ImageJ's gaussian blurring
 		* as the recursive filter results drift to the right of the image, possibly a bug
 		*/
-		ImagePlus []imBGR= new ImagePlus[3];
-		ImageProcessor []imProcBGR= new ImageProcessor[3];
-		GaussianBlur blurImage= new GaussianBlur();
-		pos = 0;
-		for(channel = 0; channel < 3; channel++){
-			IJ.showProgress(progress+=0.2f);
-			for(i = 0, pos = channel; i < channelsize; i++, pos +=bytes ){
-				in[i]=(float)(src[pos]+1.0);
-				BGR[channel][i]=in[i];
-			}
-			imBGR[channel]= NewImage.createFloatImage(""+channel, width, height, 1, NewImage.FILL_BLACK);
-			imProcBGR[channel]= imBGR[channel].getProcessor();
-			imProcBGR[channel].setPixels(BGR[channel]);
-
-			for(scale=0; scale <nscales; scale++){
-				blurImage= new GaussianBlur();
-				blurImage.blur(imProcBGR[channel],(double)RetinexScales[scale]*2.5); //2.5 is the difference between IJ blur and photoshop's see ImageJ API
-				out=(float[]) imProcBGR[channel].getPixelsCopy();
-				/*
-				*Summarize the filtered values.
-				*In fact one calculates a ratio between the original values and the filtered values.
-				*/
-				for ( i = 0, pos = channel; i < channelsize; i++, pos += bytes )
-					dst[pos] += weight * (float)( Math.log(src[pos] +1f) - Math.log(out[i]) );
-			}
+		/*
+		* Every scale blurs the result of the previous one, so that the
+		* scales of one channel are a cascade, while the three channels
+		* are independent: they are processed concurrently, each with
+		* its own working buffer, writing only to its own plane of dst.
+		*/
+		// IJ's blur with radius 2.5 * scale corresponds to sigma = scale
+		final double[][] coefs = new double[nscales][];
+		if (fastBlur)
+			for(scale=0; scale <nscales; scale++)
+				coefs[scale] = compute_coefs3(RetinexScales[scale]);
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		final AtomicInteger done = new AtomicInteger();
+		// with one thread, the caller processes slices concurrently and reports the progress
+		final boolean showProgress = threads > 1;
+		for(channel = 0; channel < channels.length; channel++){
+			final Channel source = channels[channel];
+			final float fweight = weight;
+			final float[] channelDst = dst[channel];
+			tasks.add(new Runnable() {
+				public void run() {
+					float[] in = new float[channelsize];
+					for (int i = 0; i < channelsize; i++)
+						in[i] = source.value(i);
+					ImageProcessor blurred = new FloatProcessor(width, height, in, null);
+					GaussianBlur blurImage = new GaussianBlur();
+					blurImage.showProgress(false);
+					for (int scale = 0; scale < nscales; scale++) {
+						if (fastBlur)
+							gausssmooth(in, width, height, coefs[scale]);
+						else
+							blurImage.blur(blurred, (double)RetinexScales[scale]*2.5); //2.5 is the difference between IJ blur and photoshop's see ImageJ API
+						/*
+						*Summarize the filtered values.
+						*In fact one calculates a ratio between the original values and the filtered values.
+						*/
+						for (int i = 0; i < channelsize; i++)
+							channelDst[i] += fweight * (float)( source.log(i) - fast_log(in[i]) );
+						if (showProgress)
+							IJ.showProgress(0.2 + 0.6 * done.incrementAndGet() / (channels.length * nscales));
+					}
+				}
+			});
 		}
+		run_all(tasks, Math.min(threads, channels.length));
+		if (!(pixels instanceof int[]))
+			return dst;
+		final int[] src = (int[])pixels;
 
 		/*
 		* Final calculation with original value and cumulated filter values.
@@ -298,58 +443,420 @@ public class Retinex_ implements PlugIn {
 		// gain =1f;
 		// offset = 0f;
 
-		psrc= new float[size];
-		pdst= new float[size];
-		for(i=0; i<size;i++){
-			psrc[i]=(float)src[i];
-			pdst[i]= (float)dst[i];
+		/*
+		* The source values are 8-bit, so all logarithms of them (and of
+		* the sum of three of them) come from lookup tables.
+		*/
+		double[] logAlpha = new double[256];
+		for(i=0; i<256; i++)
+			logAlpha[i] = Math.log(alpha * (i+1.0f));
+		float[] logSum = new float[3*255+1];
+		for(i=0; i<logSum.length; i++)
+			logSum[i] = (float)Math.log(i + 3f);
+
+		for(j=0; j<3; j++){
+			float[] channelDst = dst[j];
+			int shift = 8 * j;
+			for(i=0; i<channelsize; i++){
+				int c = src[i];
+				float logl = logSum[(c & 0xff) + ((c >> 8) & 0xff) + ((c >> 16) & 0xff)];
+				channelDst[i] = gain * ((float)(logAlpha[(c >> shift) & 0xff] - logl) * channelDst[i]) + offset;
+			}
 		}
 
-		for(i=0; i<size; i+= bytes){
-			float logl;
-			logl = (float)Math.log((float)psrc[i] + (float)psrc[i+1] + (float)psrc[i+2] + 3f);
+		return dst;
+	}
 
-			pdst[i] = gain * ((float)(Math.log(alpha * (psrc[i]+1.0f)) - logl) * pdst[i]) + offset;
-			pdst[i+1] = gain * ((float)(Math.log(alpha * (psrc[i+1]+1.0f)) - logl) * pdst[i+1]) + offset;
-			pdst[i+2] = gain * ((float)(Math.log(alpha * (psrc[i+2]+1.0f)) - logl) * pdst[i+2]) + offset;
+	/*
+	* Maps the values to the range of the pixel type of like, clipping
+	* beyond cvar standard deviations from the mean. Float results are
+	* returned as they are, keeping the full dynamic range.
+	*/
+	Object to_pixels(float[][] dst, int channelsize, float mean, float var, Object like){
+		if (like instanceof int[])
+			return to_rgb(dst, channelsize, mean, var);
+		if (like instanceof float[])
+			return dst[0];
+		int max = like instanceof byte[] ? 255 : 65535;
+		float mini = mean - cvar*var;
+		float range = 2*cvar*var;
+		if(range==0) range=1f;
+		byte[] bytes = like instanceof byte[] ? new byte[channelsize] : null;
+		short[] shorts = bytes == null ? new short[channelsize] : null;
+		for(int i=0; i<channelsize; i++){
+			int v = (int)clip(max * (dst[0][i] - mini) / range, 0, max);
+			if (bytes != null)
+				bytes[i] = (byte)v;
+			else
+				shorts[i] = (short)v;
 		}
+		return bytes != null ? bytes : shorts;
+	}
 
-		compute_mean_var(pdst, size, bytes);
+	/*
+	* Maps the restored values to [0, 255], clipping beyond cvar standard
+	* deviations from the mean, and packs them into RGB pixels.
+	*/
+	int [] to_rgb(float[][] dst, int channelsize, float mean, float var){
+		int i, j;
+		float mini, range, maxi;
 		mini = mean -cvar*var;
 		maxi = mean + cvar*var;
 		range = maxi - mini;
 
 		if(range==0) range=1f;
-		int [] result= new  int[size];
-		for(i=0; i<size; i+=bytes){
+		int [] result= new  int[channelsize];
+		for(i=0; i<channelsize; i++){
+			int rgb = 0;
 			for(j=0; j<3; j++){
-				float c = 255f* (pdst[i+j] - mini)/ range;
-				psrc[i+j]= clip(c, 0, 255);
-				result[i+j]= (int)psrc[i+j];
+				float c = 255f* (dst[j][i] - mini)/ range;
+				rgb |= (int)clip(c, 0, 255) << (8 * j);
 			}
+			result[i] = rgb;
 		}
 		return result;
 	}
 
 	/*
-	* Calculate the mean and variance.
+	* One channel of the input: the values to blur (offset to be
+	* positive), and their logarithms.
 	*/
-	void compute_mean_var(float[] src, int size, int bytes){
-		float vsquared=0f;
-		int i, j;
-		float [] psrc;
+	static abstract class Channel {
+		abstract float value(int i);
 
-		mean=0f;	
-		for(i=0; i<size; i+=bytes){
-			for(j=0; j<3; j++){
-				mean+= src[i+j];
-				vsquared+=src[i+j]*src[i+j];
+		double log(int i) {
+			return fast_log(value(i));
+		}
+	}
+
+	static Channel[] getChannels(final Object pixels) {
+		if (pixels instanceof int[]) {
+			final int[] src = (int[])pixels;
+			Channel[] channels = new Channel[3];
+			for (int channel = 0; channel < 3; channel++) {
+				final int shift = 8 * channel;
+				channels[channel] = new Channel() {
+					float value(int i) {
+						return (float)(((src[i] >> shift) & 0xff) + 1.0);
+					}
+
+					double log(int i) {
+						return LOG_TABLE[(src[i] >> shift) & 0xff];
+					}
+				};
+			}
+			return channels;
+		}
+		if (pixels instanceof byte[]) {
+			final byte[] src = (byte[])pixels;
+			return new Channel[] { new Channel() {
+				float value(int i) {
+					return (float)((src[i] & 0xff) + 1.0);
+				}
+
+				double log(int i) {
+					return LOG_TABLE[src[i] & 0xff];
+				}
+			} };
+		}
+		if (pixels instanceof short[]) {
+			final short[] src = (short[])pixels;
+			return new Channel[] { new Channel() {
+				float value(int i) {
+					return (float)((src[i] & 0xffff) + 1.0);
+				}
+			} };
+		}
+		if (pixels instanceof float[]) {
+			final float[] src = (float[])pixels;
+			// shift negative values so that the minimum becomes 1
+			float min = 0;
+			for (int i = 0; i < src.length; i++)
+				if (src[i] < min)
+					min = src[i];
+			final float offset = 1 - min;
+			return new Channel[] { new Channel() {
+				float value(int i) {
+					return src[i] + offset;
+				}
+			} };
+		}
+		throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+	}
+
+	/*
+	* log(v + 1) for all 8-bit values v.
+	*/
+	static final double[] LOG_TABLE = new double[256];
+	/*
+	* log(1 + k / 256) and its reciprocal argument, for the fast logarithm.
+	*/
+	static final double[] LOG_MANTISSA = new double[256], INV_MANTISSA = new double[256];
+	static {
+		for (int v = 0; v < 256; v++)
+			LOG_TABLE[v] = Math.log(v + 1f);
+		for (int k = 0; k < 256; k++) {
+			LOG_MANTISSA[k] = Math.log(1 + k / 256.0);
+			INV_MANTISSA[k] = 1 / (1 + k / 256.0);
+		}
+	}
+
+	/*
+	* A natural logarithm that is about twice as fast as Math.log, with an
+	* absolute error below 1e-10: the exponent and the leading 8 bits of
+	* the mantissa are looked up, and the remaining factor 1 + r, with
+	* 0 <= r < 1/256, is handled by a short series.
+	*/
+	static double fast_log(float x){
+		int bits = Float.floatToRawIntBits(x);
+		if (bits < 0x00800000 || bits >= 0x7f800000) // zero, subnormal, negative, infinite or NaN
+			return Math.log(x);
+		int k = (bits >>> 15) & 0xff;
+		double r = Float.intBitsToFloat((bits & 0x007fffff) | 0x3f800000) * INV_MANTISSA[k] - 1;
+		return ((bits >>> 23) - 127) * 0.6931471805599453 + LOG_MANTISSA[k] + r * (1 - r * (0.5 - r * (1 / 3.0)));
+	}
+
+	/*
+	* Coefficients of the recursive Gaussian of
+	*
+	* I. T. Young and L. J. van Vliet. Recursive implementation of the
+	* Gaussian filter. Signal Processing, 1995, 44(2): 139-151
+	*
+	* followed by the matrix of B. Triggs and M. Sdika (Boundary conditions
+	* for Young-van Vliet recursive filtering. IEEE Transactions on Signal
+	* Processing, 2006, 54(6): 2365-2367) that initializes the backward pass
+	* as if the image continued with its border values. Without it, the
+	* backward pass starts from a state the forward pass has not reached
+	* yet, which biases (shifts) the result for large scales.
+	*
+	* The published fit for q overestimates sigma by 5-15%; instead, q is
+	* refined so that the variance of the filter is exactly sigma^2.
+	*/
+	static double[] compute_coefs3(double sigma){
+		double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 :
+			3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double low = q / 2, high = q;
+		while (gauss3_variance(high) < sigma * sigma)
+			high *= 2;
+		for (int i = 0; i < 60; i++) {
+			q = (low + high) / 2;
+			if (gauss3_variance(q) < sigma * sigma)
+				low = q;
+			else
+				high = q;
+		}
+		double[] a = gauss3_feedback(q);
+		double a1 = a[0], a2 = a[1], a3 = a[2];
+		double B = 1 - (a1 + a2 + a3);
+		double s = B / ((1 + a1 - a2 + a3) * (1 - a1 - a2 - a3) * (1 + a2 + (a1 - a3) * a3));
+		return new double[] {
+			B, a1, a2, a3,
+			s * (-a3 * a1 + 1 - a3 * a3 - a2),
+			s * (a3 + a1) * (a2 + a3 * a1),
+			s * a3 * (a1 + a3 * a2),
+			s * (a1 + a3 * a2),
+			-s * (a2 - 1) * (a2 + a3 * a1),
+			-s * a3 * (a3 * a1 + a3 * a3 + a2 - 1),
+			s * (a3 * a1 + a2 + a1 * a1 - a2 * a2),
+			s * (a1 * a2 + a3 * a2 * a2 - a1 * a3 * a3 - a3 * a3 * a3 - a3 * a2 + a3),
+			s * a3 * (a1 + a3 * a2)
+		};
+	}
+
+	static double[] gauss3_feedback(double q){
+		double q2 = q * q, q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		return new double[] {
+			(2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0,
+			-(1.4281 * q2 + 1.26661 * q3) / b0,
+			0.422205 * q3 / b0
+		};
+	}
+
+	/*
+	* The variance of the forward and backward pass together: twice the
+	* variance of the causal impulse response B / (1 - sum a_k z^-k).
+	*/
+	static double gauss3_variance(double q){
+		double[] a = gauss3_feedback(q);
+		double d = 1 - a[0] - a[1] - a[2];
+		double m1 = a[0] + 2 * a[1] + 3 * a[2];
+		double m2 = a[0] + 4 * a[1] + 9 * a[2];
+		return 2 * (m2 / d + m1 * m1 / (d * d));
+	}
+
+	/*
+	* Blur an image in place with the recursive Gaussian; the cost per
+	* pixel does not depend on sigma. The vertical pass runs along the
+	* rows, with one filter state per column, to stay cache-friendly.
+	*/
+	static void gausssmooth(float[] pixels, int width, int height, double[] c){
+		double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+		double[] line = new double[width];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++)
+				line[x] = pixels[offset + x];
+			gausssmooth(line, width, c);
+			for (int x = 0; x < width; x++)
+				pixels[offset + x] = (float)line[x];
+		}
+
+		double[] w1 = new double[width], w2 = new double[width], w3 = new double[width];
+		double[] last = new double[width];
+		for (int x = 0; x < width; x++) {
+			w1[x] = w2[x] = w3[x] = pixels[x];
+			last[x] = pixels[x + (height - 1) * width];
+		}
+		for (int y = 0; y < height; y++)
+			for (int x = 0, i = y * width; x < width; x++, i++) {
+				double v = B * pixels[i] + a1 * w1[x] + a2 * w2[x] + a3 * w3[x];
+				pixels[i] = (float)v;
+				w3[x] = w2[x];
+				w2[x] = w1[x];
+				w1[x] = v;
+			}
+		// w1, w2 and w3 now hold the last three rows of the forward pass
+		// (the steady state of the first row where there are fewer rows)
+		for (int x = 0; x < width; x++) {
+			double u0 = w1[x] - last[x];
+			double u1 = w2[x] - last[x];
+			double u2 = w3[x] - last[x];
+			w1[x] = c[4] * u0 + c[5] * u1 + c[6] * u2 + last[x];
+			w2[x] = c[7] * u0 + c[8] * u1 + c[9] * u2 + last[x];
+			w3[x] = c[10] * u0 + c[11] * u1 + c[12] * u2 + last[x];
+			pixels[x + (height - 1) * width] = (float)w1[x];
+		}
+		for (int y = height - 2; y >= 0; y--)
+			for (int x = 0, i = y * width; x < width; x++, i++) {
+				double v = B * pixels[i] + a1 * w1[x] + a2 * w2[x] + a3 * w3[x];
+				pixels[i] = (float)v;
+				w3[x] = w2[x];
+				w2[x] = w1[x];
+				w1[x] = v;
 			}
+	}
+
+	static void gausssmooth(double[] line, int n, double[] c){
+		double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+		double first = line[0], last = line[n - 1];
+		// forward pass, starting in the steady state of the first value
+		double w1 = first, w2 = first, w3 = first;
+		for (int i = 0; i < n; i++) {
+			double v = B * line[i] + a1 * w1 + a2 * w2 + a3 * w3;
+			line[i] = v;
+			w3 = w2;
+			w2 = w1;
+			w1 = v;
+		}
+		// backward pass, initialized with the Triggs-Sdika matrix from the
+		// last three values of the forward pass (the steady state of the
+		// first value where the line is shorter)
+		double u0 = w1 - last;
+		double u1 = w2 - last;
+		double u2 = w3 - last;
+		double o1 = c[4] * u0 + c[5] * u1 + c[6] * u2 + last;
+		double o2 = c[7] * u0 + c[8] * u1 + c[9] * u2 + last;
+		double o3 = c[10] * u0 + c[11] * u1 + c[12] * u2 + last;
+		line[n - 1] = o1;
+		for (int i = n - 2; i >= 0; i--) {
+			double v = B * line[i] + a1 * o1 + a2 * o2 + a3 * o3;
+			line[i] = v;
+			o3 = o2;
+			o2 = o1;
+			o1 = v;
+		}
+	}
+
+	/*
+	* Calculate the mean and variance (actually, the standard deviation)
+	* over all channels.
+	*/
+	void compute_mean_var(float[][] src, int channelsize){
+		float[] meanVar = mean_var(src, channelsize, Prefs.getThreads());
+		mean = meanVar[0];
+		var = meanVar[1];
+	}
+
+	static float[] mean_var(float[][] src, int channelsize){
+		return mean_var(src, channelsize, 1);
+	}
+
+	static float[] mean_var(float[][] src, final int channelsize, int threads){
+		return mean_var(moments(src, channelsize, threads));
+	}
+
+	static float[] mean_var(double[] moments){
+		return new float[] { (float)moments[1], (float)Math.sqrt(moments[2] / moments[0]) };
+	}
+
+	/*
+	* Number of values, mean and sum of squared deviations from the mean,
+	* in double precision. The values are reduced in small blocks (two
+	* passes per block, while it is in the cache), and the blocks are
+	* combined pairwise (Chan et al.), which is stable even for very large
+	* images. Each thread reduces a contiguous range of pixels; the ranges
+	* are combined in order, so that the result does not depend on the
+	* scheduling.
+	*/
+	static final int MOMENTS_BLOCK = 4096;
+
+	static double[] moments(final float[][] src, final int channelsize, int threads){
+		threads = Math.max(1, Math.min(threads, channelsize / MOMENTS_BLOCK));
+		final double[][] ranges = new double[threads][];
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			final int from = (int)((long)channelsize * t / threads);
+			final int to = (int)((long)channelsize * (t + 1) / threads);
+			tasks.add(new Runnable() {
+				public void run() {
+					ranges[index] = range_moments(src, from, to);
+				}
+			});
 		}
-		mean /= (float)size;
-		vsquared /=  (float)size;
-		var=(vsquared-(mean*mean));
-		var= (float)Math.sqrt(var);
+		run_all(tasks, threads);
+		double[] result = new double[3];
+		for (double[] range : ranges)
+			merge_moments(result, range);
+		return result;
+	}
+
+	static double[] range_moments(float[][] src, int from, int to){
+		double[] result = new double[3];
+		double[] block = new double[3];
+		for (int start = from; start < to; start += MOMENTS_BLOCK) {
+			int end = Math.min(to, start + MOMENTS_BLOCK);
+			double sum = 0;
+			for (float[] plane : src)
+				for (int i = start; i < end; i++)
+					sum += plane[i];
+			double n = (double)src.length * (end - start);
+			double mean = sum / n, squares = 0;
+			for (float[] plane : src)
+				for (int i = start; i < end; i++) {
+					double d = plane[i] - mean;
+					squares += d * d;
+				}
+			block[0] = n;
+			block[1] = mean;
+			block[2] = squares;
+			merge_moments(result, block);
+		}
+		return result;
+	}
+
+	/*
+	* Adds the moments b to a.
+	*/
+	static void merge_moments(double[] a, double[] b){
+		double n = a[0] + b[0];
+		if (n == 0)
+			return;
+		double delta = b[1] - a[1];
+		a[1] += delta * b[0] / n;
+		a[2] += b[2] + delta * delta * a[0] * b[0] / n;
+		a[0] = n;
 	}
 
 	/*
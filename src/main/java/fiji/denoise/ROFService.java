@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2009 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package fiji.denoise;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Denoises batches of images with {@link ROF_Denoise} on a shared pool of
+ * threads, without any user interface.
+ * <p>
+ * Every submitted batch (a list of images or the slices of a stack) is
+ * split into one task per image; the tasks of all batches are queued on
+ * the same pool, so many batches can be submitted concurrently. The
+ * images are denoised in place, and the returned {@link Future} completes
+ * when all images of the batch are done. Cancelling it skips the images
+ * that have not been started yet and, if requested, interrupts the ones
+ * in progress: an interrupted image is left unchanged (for RGB images,
+ * the channels that were already done are kept).
+ * <p>
+ * Usage:
+ * <pre>
+ * ROFService service = new ROFService(8);
+ * service.setTheta(15);
+ * Future&lt;ImageStack&gt; future = service.submit(stack, null);
+ * ...
+ * future.get();
+ * service.shutdown();
+ * </pre>
+ */
+public class ROFService {
+	public interface ProgressListener {
+		/*
+		 * Called from the worker threads whenever an image of the
+		 * batch is done.
+		 */
+		void progress(int done, int total);
+	}
+
+	protected ExecutorService executor;
+	protected float theta = 25, g = 1, dt = 0.25f, tolerance;
+	protected int iterations = 5, solver = ROF_Denoise.FIXED_POINT;
+
+	public ROFService() {
+		this(Prefs.getThreads());
+	}
+
+	public ROFService(int numThreads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+	}
+
+	public void setTheta(float theta) {
+		this.theta = theta;
+	}
+
+	public void setG(float g) {
+		this.g = g;
+	}
+
+	/**
+	 * Sets the time step of the fixed point iteration.
+	 */
+	public void setTimeStep(float dt) {
+		this.dt = dt;
+	}
+
+	/**
+	 * Sets the maximal number of iterations.
+	 */
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Stops iterating once the relative change drops below the given
+	 * tolerance; 0 (the default) runs all iterations.
+	 */
+	public void setTolerance(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Sets the solver: {@link ROF_Denoise#FIXED_POINT} (the default) or
+	 * {@link ROF_Denoise#PRIMAL_DUAL}.
+	 */
+	public void setSolver(int solver) {
+		this.solver = solver;
+	}
+
+	/**
+	 * Denoises all slices of a stack in place.
+	 *
+	 * @param listener notified of the progress, or null to show it in
+	 * ImageJ's progress bar
+	 */
+	public Future<ImageStack> submit(final ImageStack stack,
+			ProgressListener listener) {
+		if (stack.isVirtual())
+			throw new IllegalArgumentException("Virtual stacks cannot be denoised in place");
+		final List<ImageProcessor> slices = new ArrayList<ImageProcessor>();
+		for (int slice = 1; slice <= stack.getSize(); slice++)
+			slices.add(stack.getProcessor(slice));
+		return submit(slices, stack, listener);
+	}
+
+	/**
+	 * Denoises all given images in place.
+	 *
+	 * @param listener notified of the progress, or null to show it in
+	 * ImageJ's progress bar
+	 */
+	public Future<List<ImageProcessor>> submit(
+			final List<ImageProcessor> images,
+			ProgressListener listener) {
+		return submit(images, images, listener);
+	}
+
+	/**
+	 * Shuts down the pool once all submitted batches are done.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	protected <T> Future<T> submit(final List<ImageProcessor> images,
+			T result, final ProgressListener listener) {
+		// copy the parameters, so that the batch is not affected by later changes
+		final float theta = this.theta, g = this.g, dt = this.dt;
+		final float tolerance = this.tolerance;
+		final int iterations = this.iterations, solver = this.solver;
+		final int total = images.size();
+		final AtomicInteger done = new AtomicInteger();
+
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		for (final ImageProcessor ip : images)
+			tasks.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					ROF_Denoise.denoise(ip, theta, g, dt, iterations,
+						tolerance, solver, 1);
+					if (Thread.currentThread().isInterrupted())
+						return;
+					int count = done.incrementAndGet();
+					if (listener != null)
+						listener.progress(count, total);
+					else
+						IJ.showProgress(count, total);
+				}
+			}));
+		return new Batch<T>(tasks, result);
+	}
+
+	/**
+	 * The future of a batch, which is done when all of its tasks are.
+	 */
+	protected static class Batch<T> implements Future<T> {
+		protected List<Future<?>> tasks;
+		protected T result;
+		protected volatile boolean cancelled;
+
+		protected Batch(List<Future<?>> tasks, T result) {
+			this.tasks = tasks;
+			this.result = result;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (isDone())
+				return false;
+			cancelled = true;
+			for (Future<?> task : tasks)
+				task.cancel(mayInterruptIfRunning);
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			if (cancelled)
+				return true;
+			for (Future<?> task : tasks)
+				if (!task.isDone())
+					return false;
+			return true;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			for (Future<?> task : tasks) {
+				if (cancelled)
+					throw new CancellationException();
+				try {
+					task.get();
+				} catch (CancellationException e) {
+					// the batch was cancelled meanwhile
+				}
+			}
+			if (cancelled)
+				throw new CancellationException();
+			return result;
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			for (Future<?> task : tasks) {
+				if (cancelled)
+					throw new CancellationException();
+				try {
+					task.get(deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS);
+				} catch (CancellationException e) {
+					// the batch was cancelled meanwhile
+				}
+			}
+			if (cancelled)
+				throw new CancellationException();
+			return result;
+		}
+	}
+}
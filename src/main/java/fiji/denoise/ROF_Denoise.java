@@ -21,17 +21,30 @@
  */
 package fiji.denoise;
 
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+import java.io.File;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This denoising method is based on total-variation, originally proposed by
  * Rudin, Osher and Fatemi. In this particular case fixed point iteration is
- * utilized.
+ * utilized; alternatively, the accelerated primal-dual algorithm by Chambolle
+ * and Pock can be used, which converges much faster.
  * <p>
  * For the included image, a fairly good result is obtained by using a theta
  * value around 12-16. A possible addition would be to analyze the residual with
@@ -47,6 +60,11 @@ import ij.process.ImageProcessor;
  * by Philippe Magiera and Carl Londahl.
  */
 public class ROF_Denoise implements PlugInFilter {
+	public static final int FIXED_POINT = 0, PRIMAL_DUAL = 1;
+	protected static final String[] SOLVERS = { "Fixed point", "Primal-dual (accelerated)" };
+	// the minimal number of slices (without padding) processed at a time in 3D mode
+	protected static final int MIN_SLAB_SIZE = 16;
+
 	protected ImagePlus image;
 
 	/**
@@ -59,7 +77,7 @@ public class ROF_Denoise implements PlugInFilter {
 	@Override
 	public int setup(final String arg, final ImagePlus image) {
 		this.image = image;
-		return DOES_32;
+		return DOES_8G | DOES_16 | DOES_32 | DOES_RGB;
 	}
 
 	/**
@@ -72,14 +90,45 @@ public class ROF_Denoise implements PlugInFilter {
 	public void run(final ImageProcessor ip) {
 		final GenericDialog gd = new GenericDialog("ROF Denoise");
 		gd.addNumericField("Theta", 25, 2);
+		gd.addChoice("Solver", SOLVERS, SOLVERS[FIXED_POINT]);
+		gd.addNumericField("Maximal iterations", 5, 0);
+		gd.addNumericField("Tolerance (0 = fixed iterations)", 0, 5);
+		final boolean isStack = image.getStackSize() > 1;
+		final boolean isVirtual = image.getStack().isVirtual();
+		gd.addNumericField("Tile size (0 = whole slices)", isVirtual ? 1024 : 0, 0);
+		if (isStack && !isVirtual)
+			gd.addCheckbox("3D (use the derivative along z)", false);
+		gd.addMessage("The tolerance is ignored if the image is split into\n"
+			+ "several tiles (or, in 3D, slabs of slices), to avoid seams.");
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 		final float theta = (float)gd.getNextNumber();
+		final int solver = gd.getNextChoiceIndex();
+		final int iterations = (int)gd.getNextNumber();
+		final float tolerance = (float)gd.getNextNumber();
+		final int tileSize = (int)gd.getNextNumber();
+		final boolean volume = isStack && !isVirtual && gd.getNextBoolean();
 
-		final ImageStack stack = image.getStack();
-		for (int slice = 1; slice <= stack.getSize(); slice++)
-			denoise((FloatProcessor)stack.getProcessor(slice), theta);
+		if (isVirtual) {
+			final DirectoryChooser chooser = new DirectoryChooser("Save denoised slices to");
+			final String directory = chooser.getDirectory();
+			if (directory == null)
+				return;
+			final int size = tileSize > 0 ? tileSize : Math.max(image.getWidth(), image.getHeight());
+			denoiseTiled(image.getStack(), theta, 1, 0.25f, iterations, tolerance, solver, size, Prefs.getThreads(),
+				new File(directory), image.getShortTitle() + "-denoised");
+			return;
+		}
+		if (volume) {
+			final Calibration calibration = image.getCalibration();
+			final float zWeight = (float)(calibration.pixelWidth / calibration.pixelDepth);
+			denoise3D(image.getStack(), theta, 1, 0.25f, iterations, tolerance, solver, zWeight, Prefs.getThreads());
+		}
+		else if (tileSize > 0)
+			denoiseTiled(image.getStack(), theta, 1, 0.25f, iterations, tolerance, solver, tileSize, Prefs.getThreads());
+		else
+			denoise(image.getStack(), theta, 1, 0.25f, iterations, tolerance, solver, Prefs.getThreads());
 		image.updateAndDraw();
 	}
 
@@ -88,57 +137,786 @@ public class ROF_Denoise implements PlugInFilter {
 	}
 
 	public static void denoise(final FloatProcessor ip, final float theta, final float g, final float dt, final int iterations) {
-		final int w = ip.getWidth();
-		final int h = ip.getHeight();
-		final float[] pixels = (float[])ip.getPixels();
-
-		final float[] u = new float[w * h];
-		final float[] p = new float[w * h * 2];
-		final float[] d = new float[w * h * 2];
-		final float[] du = new float[w * h * 2];
-		final float[] div_p = new float[w * h];
-
-		for (int iteration = 0; iteration < iterations; iteration++) {
-			for (int i = 0; i < w; i++) {
-				for (int j = 1; j < h - 1; j++)
-					div_p[i + w * j] = p[i + w * j] - p[i + w * (j - 1)];
-				// Handle boundaries
-				div_p[i] = p[i];
-				div_p[i + w * (h - 1)] = -p[i + w * (h - 1)];
+		denoise(ip, theta, g, dt, iterations, 1);
+	}
+
+	public static void denoise(final ImageStack stack, final float theta, final float g, final float dt, final int iterations, final int numThreads) {
+		denoise(stack, theta, g, dt, iterations, 0, FIXED_POINT, numThreads);
+	}
+
+	/**
+	 * Denoises all slices of a stack in place.
+	 * <p>
+	 * The slices are distributed over a pool of threads; if there are
+	 * fewer slices than threads, the remaining threads split each slice
+	 * into bands of rows.
+	 * <p>
+	 * 8-bit, 16-bit and RGB slices (the latter channel by channel) are
+	 * converted into a float buffer that every thread reuses, and the
+	 * result is rounded back into the native type.
+	 */
+	public static void denoise(final ImageStack stack, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int numThreads) {
+		final int size = stack.getSize();
+		final int sliceThreads = Math.max(1, Math.min(numThreads, size));
+		final int bandThreads = Math.max(1, numThreads / sliceThreads);
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger();
+		final Thread[] threads = new Thread[sliceThreads];
+		final int w = stack.getWidth(), h = stack.getHeight();
+		for (int t = 0; t < threads.length; t++)
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					final float[] buffer = stack.getPixels(1) instanceof float[] ? null : new float[w * h];
+					for (int slice = nextSlice.getAndIncrement(); slice <= size; slice = nextSlice.getAndIncrement()) {
+						denoise(stack.getPixels(slice), w, h, buffer, theta, g, dt, iterations, tolerance, solver, bandThreads);
+						IJ.showProgress(done.incrementAndGet(), size);
+					}
+				}
+			};
+		if (threads.length == 1)
+			threads[0].run();
+		else
+			ThreadUtil.startAndJoin(threads);
+	}
+
+	/**
+	 * Denoises a single image of any supported type in place.
+	 *
+	 * @see #denoise(ImageStack, float, float, float, int, float, int, int)
+	 */
+	public static void denoise(final ImageProcessor ip, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int numThreads) {
+		final Object pixels = ip.getPixels();
+		final float[] buffer = pixels instanceof float[] ? null : new float[ip.getWidth() * ip.getHeight()];
+		denoise(pixels, ip.getWidth(), ip.getHeight(), buffer, theta, g, dt, iterations, tolerance, solver, numThreads);
+	}
+
+	/**
+	 * Denoises a slice in place; unless it is 32-bit, it is converted
+	 * into (and back from) the given buffer, one channel at a time.
+	 */
+	protected static void denoise(final Object pixels, final int w, final int h, final float[] buffer, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int numThreads) {
+		if (pixels instanceof float[]) {
+			denoise(new FloatProcessor(w, h, (float[])pixels, null), theta, g, dt, iterations, tolerance, solver, numThreads);
+			return;
+		}
+		final int channels = pixels instanceof int[] ? 3 : 1;
+		for (int channel = 0; channel < channels; channel++) {
+			toFloat(pixels, channel, buffer, 0);
+			denoise(new FloatProcessor(w, h, buffer, null), theta, g, dt, iterations, tolerance, solver, numThreads);
+			if (Thread.currentThread().isInterrupted())
+				return;
+			fromFloat(buffer, 0, pixels, channel);
+		}
+	}
+
+	public static void denoise(final FloatProcessor ip, final float theta, final float g, final float dt, final int iterations, final int numThreads) {
+		denoise(ip, theta, g, dt, iterations, 0, FIXED_POINT, numThreads);
+	}
+
+	/**
+	 * Denoises a single image in place, splitting it into bands of rows
+	 * that are processed by numThreads threads. Each iteration consists
+	 * of two sweeps; all bands finish a sweep before the next one starts.
+	 *
+	 * @param iterations the maximal number of iterations
+	 * @param tolerance stop as soon as the relative change of u (in the
+	 * L2 norm) drops below this value; 0 means to run all iterations
+	 * @param solver {@link #FIXED_POINT} or {@link #PRIMAL_DUAL} (the
+	 * latter ignores dt)
+	 * @return the number of iterations that were run
+	 */
+	public static int denoise(final FloatProcessor ip, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int numThreads) {
+		final int w = ip.getWidth(), h = ip.getHeight();
+		final int bands = Math.max(1, Math.min(numThreads, h));
+		final Solver s = createSolver((float[])ip.getPixels(), w, h, 1, 0, theta, g, dt, iterations, solver, bands);
+		final int result = iterate(s, iterations, tolerance, bands);
+		// leave the image untouched when interrupted
+		if (!Thread.currentThread().isInterrupted())
+			s.finish();
+		return result;
+	}
+
+	/**
+	 * Denoises a stack in place as a volume, i.e. with a total
+	 * variation that includes the derivative along z.
+	 * <p>
+	 * To avoid holding the dual variables of the whole volume, the stack
+	 * is processed in slabs of slices. Each slab is padded by as many
+	 * slices on either side as there are iterations: information travels
+	 * at most one voxel per iteration, so the interior of a slab does not
+	 * see the artificial boundary. The bands of rows within a slab are
+	 * processed by numThreads threads.
+	 * <p>
+	 * The slabs would stop after different numbers of iterations, leaving
+	 * seams, so the tolerance only applies if a single slab covers the
+	 * whole stack; otherwise all iterations are run. As every slab holds
+	 * twice as many padding slices as there are iterations, a large
+	 * iteration count (at least the number of slices) results in a
+	 * single slab, i.e. the memory is only bounded for fewer iterations.
+	 *
+	 * @param zWeight the ratio between pixel width and voxel depth, to
+	 * weight the derivative along z for anisotropic data
+	 * @param dt the time step for the fixed point iteration; it is scaled
+	 * down to keep the iteration stable in three dimensions
+	 */
+	public static void denoise3D(final ImageStack stack, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final float zWeight, final int numThreads) {
+		final int channels = getChannelCount(stack);
+		for (int channel = 0; channel < channels; channel++)
+			denoise3D(stack, channel, theta, g, dt, iterations, tolerance, solver, zWeight, numThreads);
+	}
+
+	protected static void denoise3D(final ImageStack stack, final int channel, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final float zWeight, final int numThreads) {
+		final int w = stack.getWidth(), h = stack.getHeight(), d = stack.getSize();
+		final int sliceSize = w * h;
+		final int halo = Math.min(iterations, d);
+		final int slabSize = Math.max(halo, MIN_SLAB_SIZE);
+		final float dt3D = dt * 8 / (8 + 4 * zWeight * zWeight);
+		// stopping the slabs independently would leave seams
+		final float slabTolerance = slabSize >= d ? tolerance : 0;
+
+		// The result of the previous slab is written back only after the
+		// current slab copied its input, as their paddings overlap
+		float[] previous = null;
+		int previousOffset = 0, previousStart = 0, previousEnd = 0;
+		for (int z0 = 0; z0 < d; z0 += slabSize) {
+			final int z1 = Math.min(d, z0 + slabSize);
+			final int first = Math.max(0, z0 - halo), last = Math.min(d, z1 + halo);
+			final float[] pixels = new float[sliceSize * (last - first)];
+			for (int z = first; z < last; z++)
+				toFloat(stack.getPixels(z + 1), channel, pixels, (z - first) * sliceSize);
+			for (int z = previousStart; z < previousEnd; z++)
+				fromFloat(previous, (z - previousOffset) * sliceSize, stack.getPixels(z + 1), channel);
+
+			final int bands = Math.max(1, Math.min(numThreads, h * (last - first)));
+			final Solver s = createSolver(pixels, w, h, last - first, zWeight, theta, g, dt3D, iterations, solver, bands);
+			iterate(s, iterations, slabTolerance, bands);
+			s.finish();
+			IJ.showProgress(z1, d);
+
+			previous = pixels;
+			previousOffset = first;
+			previousStart = z0;
+			previousEnd = z1;
+		}
+		for (int z = previousStart; z < previousEnd; z++)
+			fromFloat(previous, (z - previousOffset) * sliceSize, stack.getPixels(z + 1), channel);
+	}
+
+	protected static int getChannelCount(final ImageStack stack) {
+		return stack.getPixels(1) instanceof int[] ? 3 : 1;
+	}
+
+	/**
+	 * Copies one slice (or one channel of an RGB slice) into a float
+	 * buffer, starting at the given offset.
+	 */
+	protected static void toFloat(final Object pixels, final int channel, final float[] buffer, final int offset) {
+		if (pixels instanceof float[]) {
+			final float[] p = (float[])pixels;
+			System.arraycopy(p, 0, buffer, offset, p.length);
+		}
+		else if (pixels instanceof byte[]) {
+			final byte[] p = (byte[])pixels;
+			for (int i = 0; i < p.length; i++)
+				buffer[offset + i] = p[i] & 0xff;
+		}
+		else if (pixels instanceof short[]) {
+			final short[] p = (short[])pixels;
+			for (int i = 0; i < p.length; i++)
+				buffer[offset + i] = p[i] & 0xffff;
+		}
+		else if (pixels instanceof int[]) {
+			final int[] p = (int[])pixels;
+			final int shift = 16 - 8 * channel;
+			for (int i = 0; i < p.length; i++)
+				buffer[offset + i] = (p[i] >> shift) & 0xff;
+		}
+		else
+			throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+	}
+
+	/**
+	 * Writes back a float buffer into one slice (or one channel of an
+	 * RGB slice), rounding and clamping to the range of the pixel type.
+	 */
+	protected static void fromFloat(final float[] buffer, final int offset, final Object pixels, final int channel) {
+		if (pixels instanceof float[]) {
+			final float[] p = (float[])pixels;
+			System.arraycopy(buffer, offset, p, 0, p.length);
+		}
+		else if (pixels instanceof byte[]) {
+			final byte[] p = (byte[])pixels;
+			for (int i = 0; i < p.length; i++)
+				p[i] = (byte)clamp(buffer[offset + i], 255);
+		}
+		else if (pixels instanceof short[]) {
+			final short[] p = (short[])pixels;
+			for (int i = 0; i < p.length; i++)
+				p[i] = (short)clamp(buffer[offset + i], 65535);
+		}
+		else if (pixels instanceof int[]) {
+			final int[] p = (int[])pixels;
+			final int shift = 16 - 8 * channel;
+			for (int i = 0; i < p.length; i++)
+				p[i] = (p[i] & ~(0xff << shift)) | (clamp(buffer[offset + i], 255) << shift);
+		}
+		else
+			throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+	}
+
+	/**
+	 * Copies a rectangle of one slice (or of one channel of an RGB slice)
+	 * into a float buffer of the rectangle's size.
+	 */
+	protected static void toFloat(final Object pixels, final int width, final int channel, final int x0, final int y0, final int w, final int h, final float[] buffer) {
+		for (int y = 0; y < h; y++) {
+			final int index = x0 + width * (y0 + y), offset = w * y;
+			if (pixels instanceof float[])
+				System.arraycopy((float[])pixels, index, buffer, offset, w);
+			else if (pixels instanceof byte[]) {
+				final byte[] p = (byte[])pixels;
+				for (int x = 0; x < w; x++)
+					buffer[offset + x] = p[index + x] & 0xff;
+			}
+			else if (pixels instanceof short[]) {
+				final short[] p = (short[])pixels;
+				for (int x = 0; x < w; x++)
+					buffer[offset + x] = p[index + x] & 0xffff;
+			}
+			else if (pixels instanceof int[]) {
+				final int[] p = (int[])pixels;
+				final int shift = 16 - 8 * channel;
+				for (int x = 0; x < w; x++)
+					buffer[offset + x] = (p[index + x] >> shift) & 0xff;
 			}
+			else
+				throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+		}
+	}
 
-			for (int j = 0; j < h; j++) {
-				for (int i = 1; i < w - 1; i++)
-					div_p[i + w * j] += p[i + w * (j + h)] - p[i - 1 + w * (j + h)];
-				// Handle boundaries
-				div_p[w * j] = p[w * (j + h)];
-				div_p[w - 1 + w * j] = -p[w - 1 + w * (j + h)];
+	/**
+	 * Writes back a rectangle of a float buffer (whose rows are bufferWidth
+	 * wide) into one slice (or one channel of an RGB slice).
+	 */
+	protected static void fromFloat(final float[] buffer, final int bufferWidth, final int bufferX, final int bufferY, final Object pixels, final int width, final int channel, final int x0, final int y0, final int w, final int h) {
+		for (int y = 0; y < h; y++) {
+			final int index = x0 + width * (y0 + y), offset = bufferX + bufferWidth * (bufferY + y);
+			if (pixels instanceof float[])
+				System.arraycopy(buffer, offset, (float[])pixels, index, w);
+			else if (pixels instanceof byte[]) {
+				final byte[] p = (byte[])pixels;
+				for (int x = 0; x < w; x++)
+					p[index + x] = (byte)clamp(buffer[offset + x], 255);
+			}
+			else if (pixels instanceof short[]) {
+				final short[] p = (short[])pixels;
+				for (int x = 0; x < w; x++)
+					p[index + x] = (short)clamp(buffer[offset + x], 65535);
 			}
+			else if (pixels instanceof int[]) {
+				final int[] p = (int[])pixels;
+				final int shift = 16 - 8 * channel;
+				for (int x = 0; x < w; x++)
+					p[index + x] = (p[index + x] & ~(0xff << shift)) | (clamp(buffer[offset + x], 255) << shift);
+			}
+			else
+				throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+		}
+	}
+
+	private static int clamp(final float value, final int max) {
+		final int rounded = Math.round(value);
+		return rounded < 0 ? 0 : (rounded > max ? max : rounded);
+	}
 
-			// Update u
-			for (int j = 0; j < h; j++)
-				for (int i = 0; i < w; i++)
-					u[i + w * j] = pixels[i + w * j] - theta * div_p[i + w * j];
+	/**
+	 * Denoises all slices of a stack in place, tile by tile.
+	 *
+	 * @see #denoiseTiled(ImageProcessor, float, float, float, int, float, int, int, int)
+	 */
+	public static void denoiseTiled(final ImageStack stack, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int tileSize, final int numThreads) {
+		final int size = stack.getSize();
+		for (int slice = 1; slice <= size; slice++) {
+			IJ.showStatus("Denoising slice " + slice + "/" + size);
+			denoiseTiled(stack.getProcessor(slice), theta, g, dt, iterations, tolerance, solver, tileSize, numThreads);
+		}
+	}
 
-			// Calculate forward derivatives
-			for (int j = 0; j < h; j++)
+	/**
+	 * Denoises all slices of a (typically virtual) stack tile by tile, and
+	 * saves every result as a TIFF file into the given directory, so that
+	 * only one slice needs to be held in memory at a time.
+	 */
+	public static void denoiseTiled(final ImageStack stack, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int tileSize, final int numThreads, final File directory, final String prefix) {
+		final int size = stack.getSize();
+		for (int slice = 1; slice <= size; slice++) {
+			IJ.showStatus("Denoising slice " + slice + "/" + size);
+			final ImageProcessor ip = stack.getProcessor(slice);
+			denoiseTiled(ip, theta, g, dt, iterations, tolerance, solver, tileSize, numThreads);
+			final String name = prefix + "-" + IJ.pad(slice, 4);
+			final File file = new File(directory, name + ".tif");
+			if (!new FileSaver(new ImagePlus(name, ip)).saveAsTiff(file.getPath()))
+				throw new RuntimeException("Could not write " + file);
+		}
+	}
+
+	/**
+	 * Denoises an image in place, in tiles of tileSize x tileSize pixels,
+	 * so that the scratch memory grows with the tile size and the image
+	 * width rather than the image size.
+	 * <p>
+	 * Every tile is padded by as many pixels on each side as there are
+	 * iterations: information travels at most one pixel per iteration, so
+	 * with a fixed iteration count the interiors, stitched together, are
+	 * identical to the result of denoising the whole image. The tiles are
+	 * processed in raster order, as many at a time as there are threads.
+	 * The parts of an interior that later tiles still read as padding are
+	 * written back only after those tiles copied their input: the bottom
+	 * strip (as high as the padding) until the next row of tiles has been
+	 * read, and the right strip of the last tile of a batch until the next
+	 * batch has been read. The scratch memory is therefore one padded tile
+	 * per thread plus two strips of image width times the padding.
+	 * <p>
+	 * The tiles would stop after different numbers of iterations, leaving
+	 * seams, so the tolerance only applies if a single tile covers the
+	 * whole image; otherwise all iterations are run. As the tiles are at
+	 * least as large as the padding, a large iteration count (at least
+	 * the image width or height) results in a single tile, i.e. the
+	 * memory is only bounded for fewer iterations.
+	 */
+	public static void denoiseTiled(final ImageProcessor ip, final float theta, final float g, final float dt, final int iterations, final float tolerance, final int solver, final int tileSize, final int numThreads) {
+		final int w = ip.getWidth(), h = ip.getHeight();
+		final Object pixels = ip.getPixels();
+		final int channels = pixels instanceof int[] ? 3 : 1;
+		final int halo = Math.min(iterations, Math.max(w, h));
+		// the padding must not reach beyond the neighbouring tiles
+		final int size = Math.max(tileSize, halo);
+		final int columns = (w + size - 1) / size, rows = (h + size - 1) / size;
+		final int tileThreads = Math.max(1, Math.min(numThreads, columns));
+		final int bandThreads = Math.max(1, numThreads / tileThreads);
+		final int batches = (columns + tileThreads - 1) / tileThreads;
+		// stopping the tiles independently would leave seams
+		final float tileTolerance = columns == 1 && rows == 1 ? tolerance : 0;
+
+		for (int channel = 0; channel < channels; channel++) {
+			// the bottom strips of the previous and of the current row
+			float[] previousStrip = null, strip = rows > 1 ? new float[w * halo] : null;
+			for (int row = 0; row < rows; row++) {
+				final boolean lastRow = row == rows - 1;
+				final float[] swap = previousStrip;
+				previousStrip = strip;
+				strip = lastRow ? null : (swap != null ? swap : new float[w * halo]);
+				int flushed = 0;
+				Tile pending = null;
+				for (int batch = 0; batch < batches; batch++) {
+					final int start = batch * tileThreads, end = Math.min(columns, start + tileThreads);
+					final Tile[] tiles = new Tile[end - start];
+					for (int i = 0; i < tiles.length; i++) {
+						tiles[i] = new Tile((start + i) * size, row * size, size, halo, w, h);
+						tiles[i].read(pixels, w, channel);
+					}
+
+					// the previous row's strips above the tiles whose right neighbour was read
+					final int readable = end == columns ? columns : end - 1;
+					for (; row > 0 && flushed < readable; flushed++) {
+						final int x0 = flushed * size, x1 = Math.min(w, x0 + size);
+						fromFloat(previousStrip, w, x0, 0, pixels, w, channel, x0, row * size - halo, x1 - x0, halo);
+					}
+					if (pending != null)
+						pending.write(pixels, w, channel, pending.x1 - halo, pending.y0, pending.x1, lastRow ? pending.y1 : pending.y1 - halo);
+
+					final AtomicInteger nextTile = new AtomicInteger();
+					final Thread[] threads = new Thread[tiles.length];
+					for (int t = 0; t < threads.length; t++)
+						threads[t] = new Thread() {
+							@Override
+							public void run() {
+								for (int i = nextTile.getAndIncrement(); i < tiles.length; i = nextTile.getAndIncrement())
+									denoise(new FloatProcessor(tiles[i].width, tiles[i].height, tiles[i].pixels, null), theta, g, dt, iterations, tileTolerance, solver, bandThreads);
+							}
+						};
+					if (threads.length == 1)
+						threads[0].run();
+					else
+						ThreadUtil.startAndJoin(threads);
+
+					pending = end < columns ? tiles[tiles.length - 1] : null;
+					for (final Tile tile : tiles) {
+						final int x1 = tile == pending ? tile.x1 - halo : tile.x1;
+						tile.write(pixels, w, channel, tile.x0, tile.y0, x1, lastRow ? tile.y1 : tile.y1 - halo);
+						if (!lastRow)
+							tile.copy(strip, w, tile.y1 - halo);
+					}
+					IJ.showProgress((channel * rows + row) * batches + batch + 1, channels * rows * batches);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A tile, padded by a halo, clipped to the image.
+	 */
+	protected static class Tile {
+		protected final int x0, y0, x1, y1;
+		protected final int left, top, width, height;
+		protected final float[] pixels;
+
+		protected Tile(final int x0, final int y0, final int size, final int halo, final int imageWidth, final int imageHeight) {
+			this.x0 = x0;
+			this.y0 = y0;
+			x1 = Math.min(imageWidth, x0 + size);
+			y1 = Math.min(imageHeight, y0 + size);
+			left = Math.max(0, x0 - halo);
+			top = Math.max(0, y0 - halo);
+			width = Math.min(imageWidth, x1 + halo) - left;
+			height = Math.min(imageHeight, y1 + halo) - top;
+			pixels = new float[width * height];
+		}
+
+		protected void read(final Object image, final int imageWidth, final int channel) {
+			toFloat(image, imageWidth, channel, left, top, width, height, pixels);
+		}
+
+		/**
+		 * Writes the part [fromX, toX) x [fromY, toY) of the interior back.
+		 */
+		protected void write(final Object image, final int imageWidth, final int channel, final int fromX, final int fromY, final int toX, final int toY) {
+			fromFloat(pixels, width, fromX - left, fromY - top, image, imageWidth, channel, fromX, fromY, toX - fromX, toY - fromY);
+		}
+
+		/**
+		 * Copies the interior from row fromY down into a strip of the
+		 * image's width.
+		 */
+		protected void copy(final float[] strip, final int imageWidth, final int fromY) {
+			for (int y = fromY; y < y1; y++)
+				System.arraycopy(pixels, (y - top) * width + x0 - left, strip, (y - fromY) * imageWidth + x0, x1 - x0);
+		}
+	}
+
+	protected static Solver createSolver(final float[] pixels, final int w, final int h, final int d, final float zWeight, final float theta, final float g, final float dt, final int iterations, final int solver, final int bands) {
+		if (solver == PRIMAL_DUAL)
+			return new PrimalDualSolver(pixels, w, h, d, zWeight, theta, g, iterations, bands);
+		return new FixedPointSolver(pixels, w, h, d, zWeight, theta, g, dt, bands);
+	}
+
+	/**
+	 * Runs the solver, splitting the rows into bands that are processed
+	 * concurrently. Each iteration consists of two sweeps; all bands
+	 * finish a sweep before the next one starts.
+	 * <p>
+	 * If the calling thread is interrupted, the iteration stops after the
+	 * current iteration, and the interrupted status is kept so that the
+	 * caller can discard the result.
+	 *
+	 * @return the number of iterations that were run
+	 */
+	protected static int iterate(final Solver s, final int iterations, final float tolerance, final int bands) {
+		final int rows = s.h * s.d;
+		final Thread caller = Thread.currentThread();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final AtomicInteger iterationsRun = new AtomicInteger();
+		// decided once per sweep, so that every band comes to the same conclusion
+		final CyclicBarrier barrier = new CyclicBarrier(bands, new Runnable() {
+			private int sweeps;
+
+			@Override
+			public void run() {
+				if (++sweeps % 2 != 0)
+					return;
+				final int iteration = sweeps / 2;
+				iterationsRun.set(iteration);
+				if (caller.isInterrupted())
+					interrupted.set(true);
+				if (interrupted.get() || (tolerance > 0 && s.getRelativeChange(iteration - 1) < tolerance))
+					iterationsRun.set(-iteration);
+			}
+		});
+		final Thread[] threads = new Thread[bands];
+		for (int t = 0; t < bands; t++) {
+			final int band = t;
+			final int start = rows * t / bands;
+			final int end = rows * (t + 1) / bands;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int iteration = 0; iteration < iterations; iteration++) {
+							s.firstSweep(iteration, start, end, band);
+							barrier.await();
+							s.secondSweep(iteration, start, end, band);
+							barrier.await();
+							if (iterationsRun.get() < 0)
+								return;
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (final BrokenBarrierException e) {
+						// another band was interrupted
+					}
+				}
+			};
+		}
+		if (bands == 1)
+			threads[0].run();
+		else {
+			for (final Thread thread : threads)
+				thread.start();
+			for (final Thread thread : threads)
+				for (;;)
+					try {
+						thread.join();
+						break;
+					} catch (final InterruptedException e) {
+						// let the bands stop after this iteration
+						interrupted.set(true);
+					}
+			if (interrupted.get())
+				caller.interrupt();
+		}
+		return Math.abs(iterationsRun.get());
+	}
+
+	/**
+	 * The state of an iterative solver for one image, or a slab of d
+	 * slices. The sweeps work on the rows start, ..., end - 1 (counting
+	 * the rows of all slices), so that bands of rows can be processed
+	 * concurrently; the sweep that updates u records the squared change of
+	 * u and the squared norm of u of the band, for the stopping criterion.
+	 * <p>
+	 * The dual variable p holds the y components in the first, the x
+	 * components in the second and, for volumes, the z components in the
+	 * third part.
+	 */
+	protected abstract static class Solver {
+		protected final int w, h, d, rows;
+		protected final float zWeight;
+		protected final float[] pixels, u, p;
+		// per band, alternating between even and odd iterations
+		protected final double[][] changes, norms;
+
+		protected Solver(final float[] pixels, final int w, final int h, final int d, final float zWeight, final int bands) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.zWeight = zWeight;
+			this.pixels = pixels;
+			rows = h * d;
+			u = new float[w * rows];
+			p = new float[w * rows * (d > 1 ? 3 : 2)];
+			changes = new double[2][bands];
+			norms = new double[2][bands];
+		}
+
+		protected abstract void firstSweep(int iteration, int start, int end, int band);
+
+		protected abstract void secondSweep(int iteration, int start, int end, int band);
+
+		protected double getRelativeChange(final int iteration) {
+			double change = 0, norm = 0;
+			for (int band = 0; band < changes[0].length; band++) {
+				change += changes[iteration % 2][band];
+				norm += norms[iteration % 2][band];
+			}
+			return norm == 0 ? (change == 0 ? 0 : Double.MAX_VALUE) : Math.sqrt(change / norm);
+		}
+
+		protected void finish() {
+			System.arraycopy(u, 0, pixels, 0, u.length);
+		}
+	}
+
+	/**
+	 * The original fixed point iteration.
+	 * <p>
+	 * The divergence of p and the derivatives of u are computed on the
+	 * fly, so that only u and p need to be stored: 3 floats of scratch
+	 * memory per pixel (4 per voxel).
+	 */
+	protected static class FixedPointSolver extends Solver {
+		protected final float theta, g, dt;
+
+		protected FixedPointSolver(final float[] pixels, final int w, final int h, final int d, final float zWeight, final float theta, final float g, final float dt, final int bands) {
+			super(pixels, w, h, d, zWeight, bands);
+			this.theta = theta;
+			this.g = g;
+			this.dt = dt;
+		}
+
+		// Calculate the divergence of p, and update u
+		@Override
+		protected void firstSweep(final int iteration, final int start, final int end, final int band) {
+			double change = 0, norm = 0;
+			for (int r = start; r < end; r++) {
+				final int j = r % h, z = r / h;
+				final int row = w * r, previousRow = w * (r - 1), xRow = w * (r + rows);
+				final int zRow = w * (r + 2 * rows), previousZRow = w * (r + 2 * rows - h);
 				for (int i = 0; i < w; i++) {
-					if (i < w - 1)
-						du[i + w * (j + h)] = u[i + 1 + w * j] - u[i + w * j];
-					if (j < h - 1)
-						du[i + w * j] = u[i + w * (j + 1)] - u[i + w * j];
+					float div_p;
+					// Handle boundaries
+					if (j == h - 1)
+						div_p = -p[i + row];
+					else if (j == 0)
+						div_p = p[i + row];
+					else
+						div_p = p[i + row] - p[i + previousRow];
+					if (i == w - 1)
+						div_p = -p[i + xRow];
+					else if (i == 0)
+						div_p = p[xRow];
+					else
+						div_p += p[i + xRow] - p[i - 1 + xRow];
+					if (d > 1) {
+						if (z < d - 1)
+							div_p += zWeight * p[i + zRow];
+						if (z > 0)
+							div_p -= zWeight * p[i + previousZRow];
+					}
+					final float value = pixels[i + row] - theta * div_p;
+					change += (value - u[i + row]) * (value - u[i + row]);
+					norm += value * value;
+					u[i + row] = value;
 				}
+			}
+			changes[iteration % 2][band] = change;
+			norms[iteration % 2][band] = norm;
+		}
 
-			// Iterate
-			for (int j = 0; j < h; j++)
+		// Calculate forward derivatives, and iterate
+		@Override
+		protected void secondSweep(final int iteration, final int start, final int end, final int band) {
+			for (int r = start; r < end; r++) {
+				final int j = r % h, z = r / h;
+				final int row = w * r, nextRow = w * (r + 1), xRow = w * (r + rows);
+				final int nextSlice = w * (r + h), zRow = w * (r + 2 * rows);
 				for (int i = 0; i < w; i++) {
-					final float du1 = du[i + w * j], du2 = du[i + w * (j + h)];
-					d[i + w * j] = 1 + dt / theta / g * Math.abs((float)Math.sqrt(du1 * du1 + du2 * du2));
-					d[i + w * (j + h)] = 1 + dt / theta / g * Math.abs((float)Math.sqrt(du1 * du1 + du2 * du2));
-					p[i + w * j] = (p[i + w * j] - dt / theta * du[i + w * j]) / d[i + w * j];
-					p[i + w * (j + h)] = (p[i + w * (j + h)] - dt / theta * du[i + w * (j + h)]) / d[i + w * (j + h)];
+					final float du1 = j < h - 1 ? u[i + nextRow] - u[i + row] : 0;
+					final float du2 = i < w - 1 ? u[i + 1 + row] - u[i + row] : 0;
+					if (d > 1) {
+						final float du3 = z < d - 1 ? zWeight * (u[i + nextSlice] - u[i + row]) : 0;
+						final float norm = 1 + dt / theta / g * (float)Math.sqrt(du1 * du1 + du2 * du2 + du3 * du3);
+						p[i + row] = (p[i + row] - dt / theta * du1) / norm;
+						p[i + xRow] = (p[i + xRow] - dt / theta * du2) / norm;
+						p[i + zRow] = (p[i + zRow] - dt / theta * du3) / norm;
+						continue;
+					}
+					final float norm = 1 + dt / theta / g * Math.abs((float)Math.sqrt(du1 * du1 + du2 * du2));
+					p[i + row] = (p[i + row] - dt / theta * du1) / norm;
+					p[i + xRow] = (p[i + xRow] - dt / theta * du2) / norm;
 				}
+			}
+		}
+	}
+
+	/**
+	 * The accelerated primal-dual algorithm (Algorithm 2) of
+	 * <p>
+	 * A. Chambolle and T. Pock, A first-order primal-dual algorithm for
+	 * convex problems with applications to imaging, J. Math. Imaging
+	 * Vis. 40 (2011), 120-145
+	 * <p>
+	 * for the same energy, g TV(u) + |u - f|^2 / (2 theta), with
+	 * over-relaxation of u and step sizes adapted to the uniform
+	 * convexity of the data term. It converges considerably faster than
+	 * the fixed point iteration.
+	 */
+	protected static class PrimalDualSolver extends Solver {
+		protected final float g, lambda;
+		protected final float[] uBar;
+		// the step sizes and over-relaxation for each iteration
+		protected final float[] tau, sigma, relaxation;
+
+		protected PrimalDualSolver(final float[] pixels, final int w, final int h, final int d, final float zWeight, final float theta, final float g, final int iterations, final int bands) {
+			super(pixels, w, h, d, zWeight, bands);
+			this.g = g;
+			lambda = 1 / theta;
+
+			uBar = new float[u.length];
+			System.arraycopy(pixels, 0, u, 0, u.length);
+			System.arraycopy(pixels, 0, uBar, 0, u.length);
+
+			// tau * sigma * L^2 = 1, with L^2 = 8 (plus 4 zWeight^2 for
+			// volumes) the squared norm of the gradient; starting with
+			// tau = theta / 2 adapts the primal step to the scale of the
+			// intensities
+			final double norm2 = 8 + (d > 1 ? 4 * zWeight * zWeight : 0);
+			tau = new float[iterations];
+			sigma = new float[iterations];
+			relaxation = new float[iterations];
+			final double gamma = 0.7 * lambda;
+			double t = 0.5 / lambda, s = 1 / (norm2 * t);
+			for (int n = 0; n < iterations; n++) {
+				tau[n] = (float)t;
+				sigma[n] = (float)s;
+				final double r = 1 / Math.sqrt(1 + 2 * gamma * t);
+				relaxation[n] = (float)r;
+				t *= r;
+				s /= r;
+			}
+		}
+
+		// Dual ascent on the gradient of the over-relaxed u, then project onto |p| <= g
+		@Override
+		protected void firstSweep(final int iteration, final int start, final int end, final int band) {
+			final float sigma = this.sigma[iteration];
+			for (int r = start; r < end; r++) {
+				final int j = r % h, z = r / h;
+				final int row = w * r, nextRow = w * (r + 1), xRow = w * (r + rows);
+				final int nextSlice = w * (r + h), zRow = w * (r + 2 * rows);
+				for (int i = 0; i < w; i++) {
+					final float p1 = p[i + row] + sigma * (j < h - 1 ? uBar[i + nextRow] - uBar[i + row] : 0);
+					final float p2 = p[i + xRow] + sigma * (i < w - 1 ? uBar[i + 1 + row] - uBar[i + row] : 0);
+					if (d > 1) {
+						final float p3 = p[i + zRow] + sigma * (z < d - 1 ? zWeight * (uBar[i + nextSlice] - uBar[i + row]) : 0);
+						final float norm = Math.max(1, (float)Math.sqrt(p1 * p1 + p2 * p2 + p3 * p3) / g);
+						p[i + row] = p1 / norm;
+						p[i + xRow] = p2 / norm;
+						p[i + zRow] = p3 / norm;
+						continue;
+					}
+					final float norm = Math.max(1, (float)Math.sqrt(p1 * p1 + p2 * p2) / g);
+					p[i + row] = p1 / norm;
+					p[i + xRow] = p2 / norm;
+				}
+			}
+		}
+
+		// Primal descent (the divergence is the negative adjoint of the forward differences)
+		@Override
+		protected void secondSweep(final int iteration, final int start, final int end, final int band) {
+			final float tau = this.tau[iteration], relaxation = this.relaxation[iteration];
+			double change = 0, norm = 0;
+			for (int r = start; r < end; r++) {
+				final int j = r % h, z = r / h;
+				final int row = w * r, previousRow = w * (r - 1), xRow = w * (r + rows);
+				final int zRow = w * (r + 2 * rows), previousZRow = w * (r + 2 * rows - h);
+				for (int i = 0; i < w; i++) {
+					float div_p = 0;
+					if (j < h - 1)
+						div_p += p[i + row];
+					if (j > 0)
+						div_p -= p[i + previousRow];
+					if (i < w - 1)
+						div_p += p[i + xRow];
+					if (i > 0)
+						div_p -= p[i - 1 + xRow];
+					if (d > 1) {
+						if (z < d - 1)
+							div_p += zWeight * p[i + zRow];
+						if (z > 0)
+							div_p -= zWeight * p[i + previousZRow];
+					}
+					final float previous = u[i + row];
+					final float value = (previous + tau * (div_p + lambda * pixels[i + row])) / (1 + tau * lambda);
+					change += (value - previous) * (value - previous);
+					norm += value * value;
+					u[i + row] = value;
+					uBar[i + row] = value + relaxation * (value - previous);
+				}
+			}
+			changes[iteration % 2][band] = change;
+			norms[iteration % 2][band] = norm;
 		}
-		System.arraycopy(u, 0, pixels, 0, w * h);
 	}
 }
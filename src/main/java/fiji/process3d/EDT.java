@@ -24,9 +24,22 @@ package fiji.process3d;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
+import ij.plugin.FileInfoVirtualStack;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 /*
  * The idea of the Euclidean Distance Transform is to get the
  * distance of every outside pixel to the nearest outside pixel.
@@ -79,33 +92,548 @@ import ij.process.ImageProcessor;
 public class EDT implements PlugInFilter {
 	ImagePlus image;
 	int w, h, d;
-	int current, total;
+	float spacingX = 1, spacingY = 1, spacingZ = 1;
+	long current, total;
+	boolean showProgress = true;
+
+	// the Z pass transforms up to MAX_TILE columns of at most
+	// TILE_SIZE voxels in total at a time
+	static final int MAX_TILE = 64, TILE_SIZE = 32768;
+	// number of voxels the streaming Z pass keeps in memory
+	int blockSize = 1 << 24;
+	boolean computeFeatures;
+	int[][] features;
+	Foreground foreground = new Foreground();
+	// label images: distance to the nearest voxel of a different label
+	boolean labels;
+	Object[] labelSlices;
+
+	/*
+	 * Output types: 32-bit distances, 16-bit squared distances,
+	 * 8-bit distances (clamped to 255) or an 8-bit mask that is 255
+	 * where the distance is smaller than maskRadius.
+	 */
+	public static final int FLOAT = 0, SQUARED_16BIT = 1,
+		CLAMPED_8BIT = 2, MASK = 3;
+	int outputType = FLOAT;
+	double maskRadius;
+	// bounded mode: squared distances are capped at this value
+	double maxDistance;
+	float cap = Float.MAX_VALUE;
 
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G | NO_CHANGES;
+		return DOES_8G | DOES_16 | DOES_32 | NO_CHANGES;
 	}
 
 	public void run(ImageProcessor ip) {
-		compute(image.getStack()).show();
+		if (image.getBitDepth() != 8 && !showDialog())
+			return;
+		Calibration calibration = image.getCalibration();
+		if (image.getNChannels() > 1 || image.getNFrames() > 1) {
+			runHyperstack(calibration);
+			return;
+		}
+		ImageStack stack = image.getStack();
+		ImagePlus result;
+		if (stack.isVirtual()) {
+			if (labels) {
+				IJ.error("EDT", "Label images cannot be "
+					+ "transformed as virtual stacks");
+				return;
+			}
+			SaveDialog dialog = new SaveDialog("Save EDT as raw",
+				image.getShortTitle() + "-EDT", ".raw");
+			if (dialog.getFileName() == null)
+				return;
+			File output = new File(dialog.getDirectory(),
+				dialog.getFileName());
+			try {
+				result = compute(stack,
+					calibration.pixelWidth,
+					calibration.pixelHeight,
+					calibration.pixelDepth, output);
+			} catch (IOException e) {
+				IJ.error("EDT", "Could not write " + output
+					+ ": " + e.getMessage());
+				return;
+			}
+		}
+		else
+			result = compute(stack,
+				calibration.pixelWidth,
+				calibration.pixelHeight,
+				calibration.pixelDepth);
+		result.setCalibration(calibration);
+		result.show();
+	}
+
+	/*
+	 * Every (channel, frame) volume is transformed on its own, several
+	 * volumes in parallel. Results of virtual hyperstacks are saved
+	 * volume by volume instead of being kept in memory.
+	 */
+	void runHyperstack(final Calibration calibration) {
+		HyperstackTransform transform = new HyperstackTransform(
+				new HyperstackTransform.Transform() {
+			public ImageStack compute(ImageStack volume) {
+				return copySettings().compute(volume,
+					calibration.pixelWidth,
+					calibration.pixelHeight,
+					calibration.pixelDepth).getStack();
+			}
+		}, Prefs.getThreads());
+		if (image.getStack().isVirtual()) {
+			DirectoryChooser chooser =
+				new DirectoryChooser("Save EDT volumes to");
+			String directory = chooser.getDirectory();
+			if (directory == null)
+				return;
+			transform.process(image, new File(directory),
+				image.getShortTitle() + "-EDT");
+		}
+		else
+			transform.process(image, "EDT").show();
+	}
+
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("EDT");
+		String[] modes = { "Non-zero", "Threshold", "Label",
+			"Distance to other labels" };
+		gd.addChoice("Foreground", modes, modes[0]);
+		gd.addNumericField("Lower threshold (or label)", 1, 2);
+		gd.addNumericField("Upper threshold", 65535, 2);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		int mode = gd.getNextChoiceIndex();
+		double lower = gd.getNextNumber();
+		double upper = gd.getNextNumber();
+		setLabels(mode == 3);
+		if (mode == Foreground.THRESHOLD)
+			setForeground(Foreground.threshold(lower, upper));
+		else if (mode == Foreground.LABEL)
+			setForeground(Foreground.label(lower));
+		else
+			setForeground(new Foreground());
+		return true;
+	}
+
+	public void setForeground(Foreground foreground) {
+		this.foreground = foreground;
+	}
+
+	/*
+	 * Treats the input as a label image: every non-zero voxel gets
+	 * the distance to the nearest voxel with a different label
+	 * (including 0), all labels in one sweep. Every row is split
+	 * into runs of equal labels, and each run is transformed on its
+	 * own, with the voxels just outside the run acting as
+	 * background. The foreground predicate is ignored in this mode.
+	 */
+	public void setLabels(boolean labels) {
+		this.labels = labels;
+	}
+
+	/*
+	 * The 16-bit and 8-bit output types never hold the full float
+	 * volume: the Y and X passes run slice by slice in a single
+	 * float buffer and store their squared distances, saturated at
+	 * 65535, in the 16-bit stack that the Z pass then transforms in
+	 * place. The compact output types measure distances in voxels of
+	 * the smallest spacing; with anisotropic spacing, the in-plane
+	 * squared distances are rounded to integers.
+	 */
+	public void setOutputType(int outputType) {
+		if (outputType < FLOAT || outputType > MASK)
+			throw new IllegalArgumentException("Invalid output type: "
+				+ outputType);
+		this.outputType = outputType;
+	}
+
+	public void setMaskRadius(double maskRadius) {
+		this.maskRadius = maskRadius;
+	}
+
+	/*
+	 * Bounded mode: distances larger than maxDistance are reported
+	 * as maxDistance. Parabolae that start at or beyond the bound
+	 * cannot contribute, so they are never added to the envelope; a
+	 * row without any parabola is filled with the bound directly.
+	 * Every pass but the first also records which rows of the next
+	 * pass receive a value below the bound, so that the next pass
+	 * fills the other rows without even reading them. Label images
+	 * are transformed run by run and do not use these shortcuts.
+	 * A value of 0 (the default) means unbounded.
+	 */
+	public void setMaxDistance(double maxDistance) {
+		this.maxDistance = maxDistance;
+	}
+
+	void initCap(float unit) {
+		cap = maxDistance > 0 ?
+			(float)(maxDistance * maxDistance / (unit * unit)) :
+			Float.MAX_VALUE;
+	}
+
+	/*
+	 * Erodes a binary mask (non-zero is foreground) by a ball of the
+	 * given radius, in voxels: a voxel remains if all voxels within
+	 * the radius are foreground.
+	 */
+	public static ImageStack erode(ImageStack mask, double radius) {
+		return morphology(mask, radius, new Foreground(), false);
+	}
+
+	/*
+	 * Dilates a binary mask (non-zero is foreground) by a ball of the
+	 * given radius, in voxels: a voxel is set if any foreground voxel
+	 * lies within the radius.
+	 */
+	public static ImageStack dilate(ImageStack mask, double radius) {
+		// the distance of every zero voxel to the nearest non-zero one
+		return morphology(mask, radius, Foreground.label(0), true);
+	}
+
+	static ImageStack morphology(ImageStack mask, double radius,
+			Foreground foreground, boolean invert) {
+		EDT edt = new EDT();
+		edt.setForeground(foreground);
+		// bound just beyond the radius to tell "at" from "beyond"
+		edt.setMaxDistance(radius + 1);
+		double radius2 = radius * radius;
+		boolean compact = (radius + 1) * (radius + 1) < 65535;
+		edt.setOutputType(compact ? SQUARED_16BIT : FLOAT);
+		ImageStack distances = edt.compute(mask).getStack();
+
+		int size = mask.getWidth() * mask.getHeight();
+		for (int i = 1; i <= distances.getSize(); i++) {
+			Object pixels = distances.getPixels(i);
+			byte[] result = new byte[size];
+			for (int j = 0; j < size; j++) {
+				boolean beyond = compact ?
+					(((short[])pixels)[j] & 0xffff) > radius2 :
+					((float[])pixels)[j] > radius;
+				result[j] = (byte)(beyond != invert ? 255 : 0);
+			}
+			distances.setPixels(result, i);
+		}
+		return distances;
+	}
+
+	void initProgress() {
+		current = 0;
+		total = showProgress ? 3L * w * h * d : 0;
+	}
+
+	/*
+	 * Returns a new instance with the same settings, so that
+	 * several volumes can be transformed concurrently.
+	 */
+	EDT copySettings() {
+		EDT copy = new EDT();
+		copy.foreground = foreground;
+		copy.labels = labels;
+		copy.outputType = outputType;
+		copy.maskRadius = maskRadius;
+		copy.maxDistance = maxDistance;
+		copy.blockSize = blockSize;
+		copy.showProgress = false;
+		return copy;
+	}
+
+	public void setBlockSize(int blockSize) {
+		this.blockSize = Math.max(1, blockSize);
+	}
+
+	/*
+	 * When enabled, the in-memory compute() also records the
+	 * feature transform: for every voxel, the index x + w * (y + h * z)
+	 * of the nearest background voxel (or -1 if there is none).
+	 * The winning parabola of every pass knows where its minimum
+	 * came from, so the index is carried along through the passes.
+	 */
+	public void setComputeFeatures(boolean computeFeatures) {
+		this.computeFeatures = computeFeatures;
+	}
+
+	/*
+	 * Returns the feature transform of the last call to compute(),
+	 * one array of w * h indices per slice, or null if it was not
+	 * requested.
+	 */
+	public int[][] getFeatures() {
+		return features;
 	}
 
 	public ImagePlus compute(ImageStack stack) {
+		return compute(stack, 1, 1, 1);
+	}
+
+	/*
+	 * Distances are measured in calibrated units: each of the
+	 * three passes weighs its parabolae by the voxel spacing along
+	 * its axis, so that anisotropic stacks need not be resampled.
+	 */
+	public ImagePlus compute(ImageStack stack, double spacingX,
+			double spacingY, double spacingZ) {
+		this.spacingX = (float)spacingX;
+		this.spacingY = (float)spacingY;
+		this.spacingZ = (float)spacingZ;
 		w = stack.getWidth();
 		h = stack.getHeight();
 		d = stack.getSize();
+		if (outputType != FLOAT)
+			return new ImagePlus("EDT", computeCompact(stack));
+		return new ImagePlus("EDT", computeFloat(stack));
+	}
+
+	ImageStack computeFloat(ImageStack stack) {
+		initCap(1);
 		ImageStack result = new ImageStack(w, h, d);
 		for (int i = 1; i <= d; i++)
 			result.setPixels(new float[w * h], i);
+		features = null;
+		if (computeFeatures) {
+			features = new int[d][];
+			for (int i = 0; i < d; i++)
+				features[i] = new int[w * h];
+		}
+		labelSlices = null;
+		if (labels) {
+			if (computeFeatures)
+				throw new IllegalStateException("The feature "
+					+ "transform is not available for labels");
+			labelSlices = new Object[d];
+			for (int i = 0; i < d; i++)
+				labelSlices[i] = stack.getPixels(i + 1);
+		}
 
-		current = 0;
-		total = w * h * d * 3;
+		initProgress();
+
+		// skip the rows beyond the bound (only in bounded mode)
+		boolean bounded = cap < Float.MAX_VALUE && labelSlices == null;
+		Z z = new Z(stack, result);
+		if (bounded)
+			z.nextActive = new boolean[w * d];
+		z.compute();
+		Y y = new Y(result);
+		y.active = z.nextActive;
+		if (bounded)
+			y.nextActive = new boolean[h * d];
+		y.compute();
+		X x = new X(result);
+		x.active = y.nextActive;
+		x.compute();
+
+		return result;
+	}
+
+	ImageStack computeCompact(ImageStack stack) {
+		if (labels || computeFeatures)
+			throw new IllegalStateException("Labels and the feature "
+				+ "transform need the 32-bit output");
+		features = null;
+		labelSlices = null;
 
-		new Z(stack, result).compute();
-		new Y(result).compute();
-		new X(result).compute();
+		float unit = Math.min(spacingX, Math.min(spacingY,
+			d > 1 ? spacingZ : Float.MAX_VALUE));
+		float radius = (float)(maskRadius / unit);
+		if (outputType == MASK && radius * radius >= 65535) {
+			// too large for the 16-bit intermediate
+			ImageStack result = computeFloat(stack);
+			for (int i = 1; i <= d; i++) {
+				float[] distances = (float[])result.getPixels(i);
+				byte[] mask = new byte[w * h];
+				for (int j = 0; j < w * h; j++)
+					mask[j] = (byte)(distances[j] < maskRadius ?
+						255 : 0);
+				result.setPixels(mask, i);
+			}
+			return result;
+		}
+
+		spacingX /= unit;
+		spacingY /= unit;
+		spacingZ /= unit;
+		initCap(unit);
+		cap = Math.min(cap, 65535);
+
+		initProgress();
+
+		ImageStack result = new ImageStack(w, h, d);
+		float[] pixels = new float[w * h];
+		ImageStack slab = new ImageStack(w, h);
+		slab.addSlice("", pixels);
+		for (int z = 0; z < d; z++) {
+			transformSlice(stack.getPixels(z + 1), slab);
+			short[] squared = new short[w * h];
+			for (int i = 0; i < w * h; i++)
+				squared[i] = (short)Math.min(65535,
+					Math.round(pixels[i]));
+			result.setPixels(squared, z + 1);
+		}
+		new CompactZ(result).compute();
+
+		if (outputType != SQUARED_16BIT)
+			for (int i = 1; i <= d; i++)
+				result.setPixels(toOutput((short[])result.getPixels(i),
+					radius), i);
+		return result;
+	}
+
+	/*
+	 * Converts 16-bit squared distances (in voxels) to the 8-bit
+	 * output types.
+	 */
+	byte[] toOutput(short[] squared, float radius) {
+		byte[] pixels = new byte[squared.length];
+		float radius2 = radius * radius;
+		for (int i = 0; i < squared.length; i++) {
+			int value = squared[i] & 0xffff;
+			if (outputType == MASK)
+				pixels[i] = (byte)(value < radius2 ? 255 : 0);
+			else
+				pixels[i] = (byte)Math.min(255,
+					Math.round(Math.sqrt(value)));
+		}
+		return pixels;
+	}
+
+	public ImagePlus compute(ImageStack stack, File output)
+			throws IOException {
+		return compute(stack, 1, 1, 1, output);
+	}
+
+	/*
+	 * Streaming variant for stacks that do not fit into memory
+	 * (typically virtual stacks): the passes are separable, so
+	 * they can be reordered. The X and Y passes are done slice by
+	 * slice, reading each input slice exactly once and writing the
+	 * squared in-plane distances to a raw 32-bit (big-endian) file.
+	 * The Z pass then reads back blocks of columns, at most
+	 * blockSize voxels at a time, and stores the final distances.
+	 * The result is a virtual stack backed by that file. Only the
+	 * 32-bit output is available this way, without features or
+	 * labels.
+	 */
+	public ImagePlus compute(ImageStack stack, double spacingX,
+			double spacingY, double spacingZ, File output)
+			throws IOException {
+		this.spacingX = (float)spacingX;
+		this.spacingY = (float)spacingY;
+		this.spacingZ = (float)spacingZ;
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+
+		// neither features nor labels are streamed
+		features = null;
+		labelSlices = null;
+		if (labels)
+			throw new IllegalStateException("Label images cannot "
+				+ "be streamed");
+		if (computeFeatures)
+			throw new IllegalStateException("The feature transform "
+				+ "is only available in memory");
+		if (outputType != FLOAT)
+			throw new IllegalStateException("Streaming needs the "
+				+ "32-bit output");
+		initCap(1);
+
+		initProgress();
+
+		RandomAccessFile file = new RandomAccessFile(output, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			file.setLength(4L * w * h * d);
+
+			float[] pixels = new float[w * h];
+			ImageStack slab = new ImageStack(w, h);
+			slab.addSlice("", pixels);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(4 * w * h);
+			for (int z = 0; z < d; z++) {
+				transformSlice(stack.getPixels(z + 1), slab);
+				buffer.clear();
+				buffer.asFloatBuffer().put(pixels);
+				write(channel, buffer, 4L * w * h * z);
+			}
+
+			int columns = Math.max(1, Math.min(w * h, blockSize / d));
+			ZBlock block = new ZBlock(columns);
+			float[] band = new float[columns];
+			buffer = ByteBuffer.allocateDirect(4 * columns);
+			for (int start = 0; start < w * h; start += columns) {
+				int count = Math.min(columns, w * h - start);
+				for (int z = 0; z < d; z++) {
+					buffer.clear().limit(4 * count);
+					read(channel, buffer,
+						4 * ((long)w * h * z + start));
+					buffer.flip();
+					buffer.asFloatBuffer().get(band, 0, count);
+					for (int i = 0, j = z; i < count; i++, j += d)
+						block.block[j] = band[i];
+				}
+				block.reset(count);
+				block.compute();
+				for (int z = 0; z < d; z++) {
+					for (int i = 0, j = z; i < count; i++, j += d)
+						band[i] = block.block[j];
+					buffer.clear().limit(4 * count);
+					buffer.asFloatBuffer().put(band, 0, count);
+					write(channel, buffer,
+						4 * ((long)w * h * z + start));
+				}
+			}
+		} finally {
+			file.close();
+		}
+
+		FileInfo info = new FileInfo();
+		info.fileFormat = FileInfo.RAW;
+		info.fileType = FileInfo.GRAY32_FLOAT;
+		info.width = w;
+		info.height = h;
+		info.nImages = d;
+		info.intelByteOrder = false;
+		info.fileName = output.getName();
+		info.directory = output.getAbsoluteFile().getParent()
+			+ File.separator;
+		return new ImagePlus("EDT",
+			new FileInfoVirtualStack(info, false));
+	}
+
+	/*
+	 * Runs the Y and X passes on a single slice, leaving squared
+	 * distances in the only slice of the given slab.
+	 */
+	void transformSlice(Object input, ImageStack slab) {
+		foreground.gather(input, 0, w * h, (float[])slab.getPixels(1),
+			0, 1, Float.MAX_VALUE, 0);
+		Y y = new Y(slab);
+		if (cap < Float.MAX_VALUE)
+			y.nextActive = new boolean[h];
+		y.compute();
+		X x = new X(slab);
+		x.active = y.nextActive;
+		x.squared = true;
+		x.compute();
+	}
+
+	static void read(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if (count < 0)
+				throw new IOException("Unexpected end of file");
+			position += count;
+		}
+	}
 
-		return new ImagePlus("EDT", result);
+	static void write(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
 	}
 
 	abstract class EDTBase {
@@ -123,55 +651,94 @@ public class EDT implements PlugInFilter {
 		float[] f, z;
 		int[] y;
 
-		EDTBase(int rowWidth) {
+		float spacing;
+
+		EDTBase(int rowWidth, float spacing) {
 			width = rowWidth;
+			this.spacing = spacing;
 			f = new float[width + 1];
 			z = new float[width + 1];
 			y = new int[width + 1];
 		}
 
-		final void computeRow() {
+		void transformRow() {
+			computeRow(0, width);
+		}
+
+		/*
+		 * Transforms the columns start, ..., end - 1 of the
+		 * current row. If the range does not cover the whole row,
+		 * the columns just outside of it count as background.
+		 */
+		void computeRow(int start, int end) {
 			// calculate the parabolae ("lower envelope")
 			f[0] = Float.MAX_VALUE;
 			y[0] = -1;
 			z[0] = Float.MAX_VALUE;
 			k = 0;
-			float fx, s;
-			for (int x = 0; x < width; x++) {
+			if (start > 0)
+				addParabola(start - 1, 0);
+			float fx;
+			for (int x = start; x < end; x++) {
 				fx = get(x);
-				for (;;) {
-					// calculate the intersection
-					s = ((fx + x * x) - (f[k] + y[k] * y[k])) / 2 / (x - y[k]);
-					if (s > z[k])
-						break;
-					if (--k < 0)
-						break;
-				}
-				k++;
-				y[k] = x;
-				f[k] = fx;
-				z[k] = s;
+				// in bounded mode, skip parabolae beyond the cap
+				if (fx < cap)
+					addParabola(x, fx);
 			}
+			if (end < width)
+				addParabola(end, 0);
 			z[++k] = Float.MAX_VALUE;
+			// no parabola at all: everything is beyond the bound
+			if (k == 1 && y[0] < 0) {
+				fill(start, end);
+				return;
+			}
 			// calculate g(x)
 			int i = 0;
-			for (int x = 0; x < width; x++) {
-				while (z[i + 1] < x)
+			float q, r;
+			for (int x = start; x < end; x++) {
+				q = x * spacing;
+				while (z[i + 1] < q)
 					i++;
-				set(x, (x - y[i]) * (x - y[i]) + f[i]);
+				r = q - y[i] * spacing;
+				fx = r * r + f[i];
+				set(x, fx < cap ? fx : cap);
 			}
 		}
 
+		final void addParabola(int x, float fx) {
+			// positions are scaled by the voxel spacing
+			float q = x * spacing, r, s;
+			for (;;) {
+				// calculate the intersection
+				r = y[k] * spacing;
+				s = ((fx + q * q) - (f[k] + r * r)) / 2 / (q - r);
+				if (s > z[k])
+					break;
+				if (--k < 0)
+					break;
+			}
+			k++;
+			y[k] = x;
+			f[k] = fx;
+			z[k] = s;
+		}
+
+		final void fill(int start, int end) {
+			for (int x = start; x < end; x++)
+				set(x, cap);
+		}
+
 		abstract float get(int column);
 
 		abstract void set(int column, float value);
 
 		final void compute() {
 			while (nextRow()) {
-				computeRow();
+				transformRow();
 				if (total > 0) {
 					current += width;
-					IJ.showProgress(current, total);
+					IJ.showProgress((double)current / total);
 				}
 			}
 		}
@@ -179,62 +746,270 @@ public class EDT implements PlugInFilter {
 		abstract boolean nextRow();
 	}
 
-	class Z extends EDTBase {
-		byte[][] inSlice;
-		float[][] outSlice;
-		int offset;
+	/*
+	 * The passes of the in-memory transform, which also track the
+	 * features (if requested) and transform label images.
+	 */
+	abstract class FeatureEDT extends EDTBase {
+		// the features of the current row, before this pass
+		int[] rowFeatures;
+		/*
+		 * In bounded mode: whether any value of the rows of this
+		 * pass (active) and of the next pass (nextActive) lies
+		 * below the bound; null if not tracked.
+		 */
+		boolean[] active, nextActive;
+		int row = -1;
+
+		FeatureEDT(int rowWidth, float spacing) {
+			super(rowWidth, spacing);
+		}
+
+		final void initFeatures() {
+			rowFeatures = new int[width];
+		}
+
+		final void transformRow() {
+			if (labelSlices != null)
+				computeLabelRow();
+			else if (active != null && !active[row]) {
+				fill(0, width);
+				if (rowFeatures != null)
+					for (int x = 0; x < width; x++)
+						setFeature(x, -1);
+			}
+			else
+				computeRow(0, width);
+		}
+
+		final void markActive(int row) {
+			if (nextActive != null)
+				nextActive[row] = true;
+		}
+
+		final void computeRow(int start, int end) {
+			if (rowFeatures == null) {
+				super.computeRow(start, end);
+				return;
+			}
+			for (int x = start; x < end; x++)
+				rowFeatures[x] = getFeature(x);
+			super.computeRow(start, end);
+			// the nearest parabola of every column is its feature
+			int i = 0;
+			for (int x = start; x < end; x++) {
+				float q = x * spacing;
+				while (z[i + 1] < q)
+					i++;
+				setFeature(x, y[i] < 0 ? -1 : rowFeatures[y[i]]);
+			}
+		}
+
+		/*
+		 * Transforms every run of equal labels separately; runs
+		 * of label 0 are background and stay 0.
+		 */
+		final void computeLabelRow() {
+			for (int start = 0, end; start < width; start = end) {
+				float label = getLabel(start);
+				for (end = start + 1; end < width; end++)
+					if (getLabel(end) != label)
+						break;
+				if (label != 0)
+					computeRow(start, end);
+			}
+		}
+
+		abstract float getLabel(int column);
+
+		abstract int getFeature(int column);
+
+		abstract void setFeature(int column, int feature);
+	}
+
+	/*
+	 * The Z pass would gather one voxel from each of the d slices
+	 * per row. To avoid that strided access, a tile of adjacent
+	 * columns is copied into a contiguous block (one row of length
+	 * d per column), transformed in place and scattered back.
+	 */
+	class Z extends FeatureEDT {
+		Object[] inSlice, outSlice;
+		float[] block, labelBlock;
+		int[] featureBlock;
+		int tile, tileStart, tileWidth, column, offset;
 
 		Z(ImageStack in, ImageStack out) {
-			super(d);
-			inSlice = new byte[d][];
-			outSlice = new float[d][];
+			super(d, spacingZ);
+			inSlice = new Object[d];
+			outSlice = new Object[d];
 			for (int i = 0; i < d; i++) {
-				inSlice[i] = (byte[])in.getPixels(i + 1);
-				outSlice[i] = (float[])out.getPixels(i + 1);
+				inSlice[i] = in.getPixels(i + 1);
+				outSlice[i] = out.getPixels(i + 1);
 			}
-			offset = -1;
+			tile = Math.max(1, Math.min(MAX_TILE, TILE_SIZE / d));
+			block = new float[tile * d];
+			if (labelSlices != null)
+				labelBlock = new float[tile * d];
+			if (features != null) {
+				initFeatures();
+				featureBlock = new int[tile * d];
+			}
+			column = -1;
 		}
 
 		final float get(int x) {
-			return inSlice[x][offset] == 0 ? 0 : Float.MAX_VALUE;
+			return block[offset + x];
 		}
 
 		final void set(int x, float value) {
-			outSlice[x][offset] = value;
+			block[offset + x] = value;
+		}
+
+		final int getFeature(int x) {
+			return block[offset + x] == 0 ?
+				x * w * h + tileStart + column : -1;
+		}
+
+		final void setFeature(int x, int feature) {
+			featureBlock[offset + x] = feature;
+		}
+
+		final float getLabel(int x) {
+			return labelBlock[offset + x];
 		}
 
 		final boolean nextRow() {
-			return ++offset < w * h;
+			if (++column < tileWidth) {
+				offset = column * d;
+				return true;
+			}
+			if (tileWidth > 0)
+				scatter();
+			tileStart += tileWidth;
+			if (tileStart >= w * h)
+				return false;
+			tileWidth = Math.min(tile, w * h - tileStart);
+			gather();
+			column = offset = 0;
+			return true;
+		}
+
+		void gather() {
+			if (labelBlock != null)
+				for (int z = 0; z < d; z++)
+					for (int i = 0, j = z; i < tileWidth; i++, j += d) {
+						labelBlock[j] = Foreground.getValue(inSlice[z],
+							tileStart + i);
+						block[j] = labelBlock[j] == 0 ?
+							0 : Float.MAX_VALUE;
+					}
+			else
+				for (int z = 0; z < d; z++)
+					foreground.gather(inSlice[z], tileStart, tileWidth,
+						block, z, d, Float.MAX_VALUE, 0);
+		}
+
+		void scatter() {
+			for (int z = 0; z < d; z++) {
+				float[] pixels = (float[])outSlice[z];
+				for (int i = 0, j = z; i < tileWidth; i++, j += d)
+					pixels[tileStart + i] = block[j];
+			}
+			// the rows of the Y pass are the columns x of slice z
+			if (nextActive != null)
+				for (int i = 0, x = tileStart % w; i < tileWidth; i++) {
+					for (int z = 0, j = i * d; z < d; z++, j++)
+						if (block[j] < cap)
+							markActive(z * w + x);
+					if (++x == w)
+						x = 0;
+				}
+			if (featureBlock != null)
+				for (int z = 0; z < d; z++) {
+					int[] indices = features[z];
+					for (int i = 0, j = z; i < tileWidth; i++, j += d)
+						indices[tileStart + i] = featureBlock[j];
+				}
+		}
+	}
+
+	/*
+	 * The Z pass of the compact output types, transforming a 16-bit
+	 * stack of squared in-plane distances in place.
+	 */
+	class CompactZ extends Z {
+		CompactZ(ImageStack squared) {
+			super(squared, squared);
+		}
+
+		void gather() {
+			for (int z = 0; z < d; z++) {
+				short[] pixels = (short[])inSlice[z];
+				for (int i = 0, j = z; i < tileWidth; i++, j += d)
+					block[j] = pixels[tileStart + i] & 0xffff;
+			}
+		}
+
+		void scatter() {
+			for (int z = 0; z < d; z++) {
+				short[] pixels = (short[])outSlice[z];
+				for (int i = 0, j = z; i < tileWidth; i++, j += d)
+					pixels[tileStart + i] = (short)Math.min(65535,
+						Math.round(block[j]));
+			}
 		}
 	}
 
-	abstract class OneDimension extends EDTBase {
+	abstract class OneDimension extends FeatureEDT {
 		ImageStack stack;
 		float[] slice;
+		int[] featureSlice;
+		Object labelSlice;
 		int offset, lastOffset, rowStride, columnStride, sliceIndex;
 
 		OneDimension(ImageStack out, boolean iterateX) {
-			super(iterateX ? w : h);
+			super(iterateX ? w : h, iterateX ? spacingX : spacingY);
 			stack = out;
 			columnStride = iterateX ? 1 : w;
 			rowStride = iterateX ? w : 1;
 			offset = w * h;
 			lastOffset = rowStride * (iterateX ? h : w);
 			sliceIndex = -1;
+			if (features != null)
+				initFeatures();
 		}
 
 		final float get(int x) {
 			return slice[x * columnStride + offset];
 		}
 
+		final int getFeature(int x) {
+			return featureSlice[x * columnStride + offset];
+		}
+
+		final float getLabel(int x) {
+			return Foreground.getValue(labelSlice,
+				x * columnStride + offset);
+		}
+
+		final void setFeature(int x, int feature) {
+			featureSlice[x * columnStride + offset] = feature;
+		}
+
 		final boolean nextRow() {
 			offset += rowStride;
 			if (offset >= lastOffset) {
-				if (++sliceIndex >= d)
+				if (++sliceIndex >= stack.getSize())
 					return false;
 				offset = 0;
 				slice = (float[])stack.getPixels(sliceIndex + 1);
+				if (rowFeatures != null)
+					featureSlice = features[sliceIndex];
+				if (labelSlices != null)
+					labelSlice = labelSlices[sliceIndex];
 			}
+			row++;
 			return true;
 		}
 	}
@@ -246,16 +1021,55 @@ public class EDT implements PlugInFilter {
 
 		final void set(int x, float value) {
 			slice[x * columnStride + offset] = value;
+			// the rows of the X pass are the rows y of each slice
+			if (nextActive != null && value < cap)
+				nextActive[sliceIndex * h + x] = true;
 		}
 	}
 
 	class X extends OneDimension {
+		// whether another pass follows
+		boolean squared;
+
 		X(ImageStack out) {
 			super(out, true);
 		}
 
 		final void set(int x, float value) {
-			slice[x * columnStride + offset] = (float)Math.sqrt(value);
+			slice[x * columnStride + offset] = squared ?
+				value : (float)Math.sqrt(value);
+		}
+	}
+
+	/*
+	 * The last pass of the streaming variant: every row is a
+	 * column of d voxels in a block that was read from disk.
+	 */
+	class ZBlock extends EDTBase {
+		float[] block;
+		int columns, offset;
+
+		ZBlock(int maxColumns) {
+			super(d, spacingZ);
+			block = new float[maxColumns * d];
+		}
+
+		final void reset(int columns) {
+			this.columns = columns;
+			offset = -d;
+		}
+
+		final float get(int x) {
+			return block[offset + x];
+		}
+
+		final void set(int x, float value) {
+			block[offset + x] = (float)Math.sqrt(value);
+		}
+
+		final boolean nextRow() {
+			offset += d;
+			return offset < columns * d;
 		}
 	}
 }
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2009 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package fiji.process3d;
+
+/**
+ * Decides which voxels of an 8-bit, 16-bit or 32-bit stack count as
+ * foreground for the distance transforms, so that such stacks need not
+ * be thresholded into an 8-bit copy first.
+ * <p>
+ * A voxel is foreground if it is non-zero, if its value lies within
+ * [lower, upper] (threshold), or if its value equals a given label.
+ */
+public class Foreground {
+	public static final int NONZERO = 0, THRESHOLD = 1, LABEL = 2;
+
+	protected int mode;
+	protected float lower, upper;
+
+	public Foreground() {
+		this(NONZERO, 0, 0);
+	}
+
+	public Foreground(int mode, double lower, double upper) {
+		if (mode < NONZERO || mode > LABEL)
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		this.mode = mode;
+		this.lower = (float)lower;
+		this.upper = (float)upper;
+	}
+
+	public static Foreground threshold(double lower, double upper) {
+		return new Foreground(THRESHOLD, lower, upper);
+	}
+
+	public static Foreground label(double label) {
+		return new Foreground(LABEL, label, label);
+	}
+
+	public final boolean contains(float value) {
+		switch (mode) {
+		case THRESHOLD:
+			return value >= lower && value <= upper;
+		case LABEL:
+			return value == lower;
+		default:
+			return value != 0;
+		}
+	}
+
+	/**
+	 * Returns the value of a voxel; 8-bit and 16-bit values are unsigned.
+	 */
+	public static float getValue(Object pixels, int index) {
+		if (pixels instanceof byte[])
+			return ((byte[])pixels)[index] & 0xff;
+		if (pixels instanceof short[])
+			return ((short[])pixels)[index] & 0xffff;
+		return ((float[])pixels)[index];
+	}
+
+	/*
+	 * Classifies count consecutive voxels of a slice, starting at
+	 * start, and stores inside or outside for each of them in block,
+	 * starting at offset and advancing by stride. The type dispatch
+	 * happens once per call rather than once per voxel.
+	 */
+	final void gather(Object pixels, int start, int count,
+			float[] block, int offset, int stride,
+			float inside, float outside) {
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i = start; i < start + count; i++, offset += stride)
+				block[offset] = contains(p[i] & 0xff) ?
+					inside : outside;
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i = start; i < start + count; i++, offset += stride)
+				block[offset] = contains(p[i] & 0xffff) ?
+					inside : outside;
+		}
+		else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int i = start; i < start + count; i++, offset += stride)
+				block[offset] = contains(p[i]) ? inside : outside;
+		}
+		else
+			throw new IllegalArgumentException("Unsupported pixel type: "
+				+ pixels.getClass().getName());
+	}
+}
@@ -0,0 +1,352 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2009 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package fiji.process3d;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * The Geodesic Distance Transform measures, for every voxel of a mask,
+ * the length of the shortest path to the nearest seed voxel that stays
+ * inside the mask (e.g. along a neuron, or within a cell).
+ *
+ * Paths are chains of voxels in the 26-neighbourhood, each step
+ * weighted by its (calibrated) length, rounded to an integer multiple
+ * of a tenth of the smallest voxel spacing (a chamfer distance).
+ * Since all weights are small integers, the shortest paths are found
+ * with Dial's algorithm: a bucket queue with one bucket per distance,
+ * of which only maxWeight + 1 need to exist at any time.
+ *
+ * The connected components of the mask are independent of each other,
+ * so the components that contain seeds are processed in parallel.
+ *
+ * Voxels outside the mask, and those that cannot reach any seed, are
+ * set to NaN.
+ */
+public class GDT implements PlugInFilter {
+	ImagePlus image;
+	int w, h, d;
+	int numThreads = Prefs.getThreads();
+	float spacingX = 1, spacingY = 1, spacingZ = 1;
+
+	// one step along the smallest spacing costs SCALE
+	static final int SCALE = 10;
+
+	public int setup(String arg, ImagePlus image) {
+		this.image = image;
+		return DOES_8G | DOES_16 | NO_CHANGES;
+	}
+
+	public void run(ImageProcessor ip) {
+		int[] ids = WindowManager.getIDList();
+		List<String> titles = new ArrayList<String>();
+		for (int i = 0; ids != null && i < ids.length; i++) {
+			ImagePlus imp = WindowManager.getImage(ids[i]);
+			if (imp != null && imp != image &&
+					imp.getWidth() == image.getWidth() &&
+					imp.getHeight() == image.getHeight() &&
+					imp.getStackSize() == image.getStackSize())
+				titles.add(imp.getTitle());
+		}
+		if (titles.isEmpty()) {
+			IJ.error("GDT", "Needs a seed image of the same size");
+			return;
+		}
+		GenericDialog gd = new GenericDialog("GDT");
+		gd.addChoice("Seeds", titles.toArray(new String[0]),
+			titles.get(0));
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		ImagePlus seeds = WindowManager.getImage(gd.getNextChoice());
+
+		Calibration calibration = image.getCalibration();
+		ImagePlus result = compute(image.getStack(), seeds.getStack(),
+				calibration.pixelWidth,
+				calibration.pixelHeight,
+				calibration.pixelDepth);
+		if (result == null)
+			return;
+		result.setCalibration(calibration);
+		result.show();
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/*
+	 * The mask and the seeds are 8-bit or 16-bit stacks, where
+	 * non-zero voxels are inside the mask, or seeds, respectively.
+	 * Seeds outside the mask are ignored.
+	 *
+	 * If the calling thread is interrupted, the propagation stops
+	 * and null is returned.
+	 */
+	public ImagePlus compute(ImageStack mask, ImageStack seeds) {
+		return compute(mask, seeds, 1, 1, 1);
+	}
+
+	public ImagePlus compute(ImageStack mask, ImageStack seeds,
+			double spacingX, double spacingY, double spacingZ) {
+		this.spacingX = (float)spacingX;
+		this.spacingY = (float)spacingY;
+		this.spacingZ = (float)spacingZ;
+		w = mask.getWidth();
+		h = mask.getHeight();
+		d = mask.getSize();
+
+		final boolean[][] inside = new boolean[d][];
+		for (int z = 0; z < d; z++)
+			inside[z] = nonZero(mask.getPixels(z + 1));
+
+		// group the seeds by the mask component they belong to
+		int[][] component = new int[d][w * h];
+		List<IntList> components = new ArrayList<IntList>();
+		for (int z = 0; z < d; z++) {
+			boolean[] isSeed = nonZero(seeds.getPixels(z + 1));
+			for (int i = 0; i < w * h; i++) {
+				if (!isSeed[i] || !inside[z][i])
+					continue;
+				if (component[z][i] == 0) {
+					components.add(new IntList());
+					label(inside, component, z * w * h + i,
+						components.size());
+				}
+				components.get(component[z][i] - 1).add(z * w * h + i);
+			}
+		}
+		component = null;
+
+		final float[][] result = new float[d][w * h];
+		for (int z = 0; z < d; z++)
+			Arrays.fill(result[z], Float.NaN);
+
+		final int[] weights = new int[27];
+		final int maxWeight = initWeights(weights);
+		ExecutorService executor = Executors.newFixedThreadPool(
+			Math.max(1, Math.min(numThreads, components.size())));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final IntList seedList : components)
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					propagate(inside, seedList, weights, maxWeight,
+						result);
+				}
+			}));
+		executor.shutdown();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+				IJ.showProgress(i + 1, futures.size());
+			}
+		} catch (InterruptedException e) {
+			// the result is incomplete: do not pass it off as done
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw new RuntimeException(e.getCause());
+		}
+
+		ImageStack stack = new ImageStack(w, h, d);
+		for (int z = 0; z < d; z++)
+			stack.setPixels(result[z], z + 1);
+		return new ImagePlus("GDT", stack);
+	}
+
+	static boolean[] nonZero(Object pixels) {
+		boolean[] result;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			result = new boolean[p.length];
+			for (int i = 0; i < p.length; i++)
+				result[i] = p[i] != 0;
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			result = new boolean[p.length];
+			for (int i = 0; i < p.length; i++)
+				result[i] = p[i] != 0;
+		}
+		else
+			throw new IllegalArgumentException("Only 8-bit and 16-bit "
+				+ "stacks are supported");
+		return result;
+	}
+
+	/*
+	 * Flood-fills the 26-connected mask component containing the
+	 * given voxel with the given id.
+	 */
+	void label(boolean[][] inside, int[][] component, int start, int id) {
+		IntList queue = new IntList();
+		component[start / (w * h)][start % (w * h)] = id;
+		queue.add(start);
+		for (int j = 0; j < queue.size; j++) {
+			int index = queue.data[j];
+			int z = index / (w * h), y = (index / w) % h, x = index % w;
+			for (int dz = -1; dz <= 1; dz++) {
+				if (z + dz < 0 || z + dz >= d)
+					continue;
+				for (int dy = -1; dy <= 1; dy++) {
+					if (y + dy < 0 || y + dy >= h)
+						continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						if (x + dx < 0 || x + dx >= w)
+							continue;
+						int i = x + dx + w * (y + dy);
+						if (inside[z + dz][i] &&
+								component[z + dz][i] == 0) {
+							component[z + dz][i] = id;
+							queue.add(i + w * h * (z + dz));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Calculates the integer weight of each step in the
+	 * 26-neighbourhood, indexed by (dz + 1) * 9 + (dy + 1) * 3 + dx + 1,
+	 * and returns the largest one.
+	 */
+	int initWeights(int[] weights) {
+		float unit = getUnit();
+		int max = 0;
+		for (int dz = -1; dz <= 1; dz++)
+			for (int dy = -1; dy <= 1; dy++)
+				for (int dx = -1; dx <= 1; dx++) {
+					double length = Math.sqrt(dx * dx * spacingX * spacingX
+						+ dy * dy * spacingY * spacingY
+						+ dz * dz * spacingZ * spacingZ);
+					int weight = (int)Math.max(1,
+						Math.round(SCALE * length / unit));
+					weights[(dz + 1) * 9 + (dy + 1) * 3 + dx + 1] = weight;
+					max = Math.max(max, weight);
+				}
+		return max;
+	}
+
+	float getUnit() {
+		return Math.min(spacingX, Math.min(spacingY,
+			d > 1 ? spacingZ : Float.MAX_VALUE));
+	}
+
+	/*
+	 * Dial's algorithm, starting from the seeds of one component.
+	 * While running, result holds the integer path lengths; they are
+	 * scaled to calibrated distances at the end.
+	 */
+	void propagate(boolean[][] inside, IntList seeds, int[] weights,
+			int maxWeight, float[][] result) {
+		int size = w * h;
+		IntList[] buckets = new IntList[maxWeight + 1];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new IntList();
+		IntList reached = new IntList();
+		int pending = 0;
+		for (int j = 0; j < seeds.size; j++) {
+			int index = seeds.data[j];
+			result[index / size][index % size] = 0;
+			buckets[0].add(index);
+			pending++;
+		}
+
+		for (int distance = 0; pending > 0; distance++) {
+			// cancelled: the result will be discarded
+			if (Thread.currentThread().isInterrupted())
+				return;
+			// all weights are positive: this bucket cannot grow now
+			IntList bucket = buckets[distance % buckets.length];
+			for (int j = 0; j < bucket.size; j++) {
+				int index = bucket.data[j];
+				pending--;
+				int z = index / size, i = index % size;
+				if (result[z][i] != distance)
+					continue; // superseded by a shorter path
+				reached.add(index);
+				int y = i / w, x = i % w;
+				for (int dz = -1; dz <= 1; dz++) {
+					if (z + dz < 0 || z + dz >= d)
+						continue;
+					float[] slice = result[z + dz];
+					boolean[] mask = inside[z + dz];
+					for (int dy = -1; dy <= 1; dy++) {
+						if (y + dy < 0 || y + dy >= h)
+							continue;
+						for (int dx = -1; dx <= 1; dx++) {
+							if (x + dx < 0 || x + dx >= w)
+								continue;
+							int n = x + dx + w * (y + dy);
+							if (!mask[n])
+								continue;
+							int next = distance + weights[(dz + 1) * 9
+								+ (dy + 1) * 3 + dx + 1];
+							if (Float.isNaN(slice[n]) || next < slice[n]) {
+								slice[n] = next;
+								buckets[next % buckets.length]
+									.add(n + size * (z + dz));
+								pending++;
+							}
+						}
+					}
+				}
+			}
+			bucket.size = 0;
+		}
+
+		float factor = getUnit() / SCALE;
+		for (int j = 0; j < reached.size; j++) {
+			int index = reached.data[j];
+			result[index / size][index % size] *= factor;
+		}
+	}
+
+	static class IntList {
+		int[] data = new int[16];
+		int size;
+
+		final void add(int value) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, 2 * size);
+			data[size++] = value;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2009 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package fiji.process3d;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a 3D transform independently to every (channel, frame) volume
+ * of a hyperstack.
+ * <p>
+ * Several volumes are transformed in parallel, and every result is handed
+ * to a {@link Consumer} as soon as it is done. At most one volume per
+ * worker thread is in flight, so a long time-lapse need not keep all
+ * results in memory at once.
+ */
+public class HyperstackTransform {
+	public interface Transform {
+		ImageStack compute(ImageStack volume);
+	}
+
+	public interface Consumer {
+		/*
+		 * Called from the worker threads, with channel and frame
+		 * counted from 1.
+		 */
+		void volumeDone(int channel, int frame, ImageStack result);
+	}
+
+	protected Transform transform;
+	protected int numThreads;
+
+	public HyperstackTransform(Transform transform, int numThreads) {
+		this.transform = transform;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public void process(final ImagePlus image, final Consumer consumer) {
+		final int channels = image.getNChannels();
+		final int slices = image.getNSlices();
+		final int frames = image.getNFrames();
+		final int volumes = channels * frames;
+		final ImageStack stack = image.getStack();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+
+		int threads = Math.min(numThreads, volumes);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++)
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					for (;;) {
+						int index = next.getAndIncrement();
+						if (index >= volumes ||
+								Thread.currentThread().isInterrupted())
+							return;
+						int channel = index % channels + 1;
+						int frame = index / channels + 1;
+						ImageStack volume = new ImageStack(stack.getWidth(),
+							stack.getHeight());
+						// virtual stacks need not be thread-safe
+						synchronized (stack) {
+							for (int z = 1; z <= slices; z++)
+								volume.addSlice(stack.getProcessor(image
+									.getStackIndex(channel, z, frame)));
+						}
+						consumer.volumeDone(channel, frame,
+							transform.compute(volume));
+						IJ.showProgress(done.incrementAndGet(), volumes);
+					}
+				}
+			}));
+		executor.shutdown();
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Transforms all volumes and assembles the results into a new
+	 * hyperstack of the same dimensions.
+	 */
+	public ImagePlus process(ImagePlus image, String title) {
+		final int channels = image.getNChannels();
+		final int slices = image.getNSlices();
+		final int frames = image.getNFrames();
+		final ImageStack result = new ImageStack(image.getWidth(),
+			image.getHeight(), channels * slices * frames);
+		process(image, new Consumer() {
+			public void volumeDone(int channel, int frame,
+					ImageStack volume) {
+				for (int z = 1; z <= slices; z++)
+					result.setPixels(volume.getPixels(z),
+						(frame - 1) * channels * slices
+						+ (z - 1) * channels + channel);
+			}
+		});
+		ImagePlus imp = new ImagePlus(title, result);
+		imp.setDimensions(channels, slices, frames);
+		if (channels * frames > 1)
+			imp.setOpenAsHyperStack(true);
+		imp.setCalibration(image.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * Transforms all volumes and saves every result as a TIFF file
+	 * into the given directory, without keeping them in memory.
+	 */
+	public void process(ImagePlus image, final File directory,
+			final String prefix) {
+		final Calibration calibration = image.getCalibration();
+		process(image, new Consumer() {
+			public void volumeDone(int channel, int frame,
+					ImageStack volume) {
+				String name = prefix + "-c" + channel + "-t" + frame;
+				File file = new File(directory, name + ".tif");
+				ImagePlus imp = new ImagePlus(name, volume);
+				imp.setCalibration(calibration);
+				FileSaver saver = new FileSaver(imp);
+				// saveAsTiffStack() refuses single slices
+				if (!(volume.getSize() == 1 ?
+						saver.saveAsTiff(file.getPath()) :
+						saver.saveAsTiffStack(file.getPath())))
+					throw new RuntimeException("Could not write " + file);
+			}
+		});
+	}
+}
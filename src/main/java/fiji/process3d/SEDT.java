@@ -24,8 +24,15 @@ package fiji.process3d;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.measure.Calibration;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+import java.io.File;
 
 /*
  * The idea of the Euclidean Distance Transform is to get the
@@ -86,19 +93,120 @@ import ij.process.ImageProcessor;
 public class SEDT implements PlugInFilter {
 	ImagePlus image, scaledResult;
 	int w, h, d;
-	int current, total;
+	float spacingX = 1, spacingY = 1, spacingZ = 1;
+	long current, total;
+	boolean showProgress = true;
 	float minValue, maxValue;
+	int numThreads = Prefs.getThreads();
+	Foreground foreground = new Foreground();
+
+	// the Z pass transforms up to MAX_TILE columns of at most
+	// TILE_SIZE voxels in total at a time
+	static final int MAX_TILE = 64, TILE_SIZE = 32768;
 
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G | NO_CHANGES;
+		return DOES_8G | DOES_16 | DOES_32 | NO_CHANGES;
 	}
 
 	public void run(ImageProcessor ip) {
-		compute(image.getStack()).show();
+		if (image.getBitDepth() != 8 && !showDialog())
+			return;
+		Calibration calibration = image.getCalibration();
+		if (image.getNChannels() > 1 || image.getNFrames() > 1) {
+			runHyperstack(calibration);
+			return;
+		}
+		ImagePlus result = compute(image.getStack(),
+				calibration.pixelWidth,
+				calibration.pixelHeight,
+				calibration.pixelDepth);
+		result.setCalibration(calibration);
+		result.show();
+	}
+
+	/*
+	 * Every (channel, frame) volume is transformed on its own, several
+	 * volumes in parallel, with the remaining threads working inside
+	 * each volume. Results of virtual hyperstacks are saved volume by
+	 * volume instead of being kept in memory.
+	 */
+	void runHyperstack(final Calibration calibration) {
+		int volumes = image.getNChannels() * image.getNFrames();
+		final int innerThreads = Math.max(1,
+			numThreads / Math.min(numThreads, volumes));
+		HyperstackTransform transform = new HyperstackTransform(
+				new HyperstackTransform.Transform() {
+			public ImageStack compute(ImageStack volume) {
+				SEDT sedt = new SEDT();
+				sedt.foreground = foreground;
+				sedt.showProgress = false;
+				sedt.setNumThreads(innerThreads);
+				return sedt.compute(volume,
+					calibration.pixelWidth,
+					calibration.pixelHeight,
+					calibration.pixelDepth).getStack();
+			}
+		}, numThreads);
+		if (image.getStack().isVirtual()) {
+			DirectoryChooser chooser =
+				new DirectoryChooser("Save SEDT volumes to");
+			String directory = chooser.getDirectory();
+			if (directory == null)
+				return;
+			transform.process(image, new File(directory),
+				image.getShortTitle() + "-SEDT");
+		}
+		else {
+			ImagePlus result = transform.process(image, "EDT");
+			result.resetDisplayRange();
+			result.show();
+		}
+	}
+
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("SEDT");
+		String[] modes = { "Non-zero", "Threshold", "Label" };
+		gd.addChoice("Foreground", modes, modes[0]);
+		gd.addNumericField("Lower threshold (or label)", 1, 2);
+		gd.addNumericField("Upper threshold", 65535, 2);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		int mode = gd.getNextChoiceIndex();
+		double lower = gd.getNextNumber();
+		double upper = gd.getNextNumber();
+		if (mode == Foreground.THRESHOLD)
+			setForeground(Foreground.threshold(lower, upper));
+		else if (mode == Foreground.LABEL)
+			setForeground(Foreground.label(lower));
+		else
+			setForeground(new Foreground());
+		return true;
+	}
+
+	public void setForeground(Foreground foreground) {
+		this.foreground = foreground;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
 	}
 
 	public ImagePlus compute(ImageStack stack) {
+		return compute(stack, 1, 1, 1);
+	}
+
+	/*
+	 * Distances are measured in calibrated units: each of the
+	 * three passes weighs its parabolae by the voxel spacing along
+	 * its axis, so that anisotropic stacks need not be resampled.
+	 */
+	public ImagePlus compute(ImageStack stack, double spacingX,
+			double spacingY, double spacingZ) {
+		this.spacingX = (float)spacingX;
+		this.spacingY = (float)spacingY;
+		this.spacingZ = (float)spacingZ;
 		w = stack.getWidth();
 		h = stack.getHeight();
 		d = stack.getSize();
@@ -107,23 +215,72 @@ public class SEDT implements PlugInFilter {
 			result.setPixels(new float[w * h], i);
 
 		current = 0;
-		total = w * h * d * 3;
+		total = showProgress ? 3L * w * h * d : 0;
 		/* Since X class is the last to call set method,
 		 * it is its set method that takes care of
-		 * updating {min,max}Value
+		 * updating {min,max}Value; every worker keeps its
+		 * own extrema, which are merged after the pass.
 		 */
 		minValue = 0;
 		maxValue = 0;
 
-		new Z(stack, result).compute();
-		new Y(result).compute();
-		new X(result).compute();
+		int threads = Math.max(1, Math.min(numThreads, w * h));
+		EDTBase[] z = new EDTBase[threads];
+		for (int t = 0; t < threads; t++)
+			z[t] = new Z(stack, result);
+		computeParallel(z, w * h);
+
+		threads = Math.max(1, Math.min(numThreads, w * d));
+		EDTBase[] y = new EDTBase[threads];
+		for (int t = 0; t < threads; t++)
+			y[t] = new Y(result);
+		computeParallel(y, w * d);
+
+		threads = Math.max(1, Math.min(numThreads, h * d));
+		X[] x = new X[threads];
+		for (int t = 0; t < threads; t++)
+			x[t] = new X(result);
+		computeParallel(x, h * d);
+		for (int t = 0; t < threads; t++) {
+			if (x[t].minValue < minValue)
+				minValue = x[t].minValue;
+			if (x[t].maxValue > maxValue)
+				maxValue = x[t].maxValue;
+		}
 
 		scaledResult = new ImagePlus("EDT", result);
 		scaledResult.setDisplayRange(minValue, maxValue);
 		return scaledResult;
 	}
 
+	/*
+	 * The rows of one pass are independent of each other, so they
+	 * are split into contiguous blocks, one per worker. Each worker
+	 * brings its own parabola buffers.
+	 */
+	void computeParallel(final EDTBase[] workers, final int rowCount) {
+		Thread[] threads = new Thread[workers.length];
+		for (int t = 0; t < threads.length; t++) {
+			final EDTBase worker = workers[t];
+			final int start = (int)((long)rowCount * t / threads.length);
+			final int end = (int)((long)rowCount * (t + 1) / threads.length);
+			threads[t] = new Thread() {
+				public void run() {
+					worker.compute(start, end);
+				}
+			};
+		}
+		if (threads.length == 1)
+			threads[0].run();
+		else
+			ThreadUtil.startAndJoin(threads);
+	}
+
+	synchronized void addProgress(long count) {
+		current += count;
+		IJ.showProgress((double)current / total);
+	}
+
 	abstract class EDTBase {
 		int width;
 		/*
@@ -139,8 +296,11 @@ public class SEDT implements PlugInFilter {
 		float[] fNeg, fPos, zNeg, zPos;
 		int[] yNeg, yPos;
 
-		EDTBase(int rowWidth) {
+		float spacing;
+
+		EDTBase(int rowWidth, float spacing) {
 			width = rowWidth;
+			this.spacing = spacing;
 			fNeg = new float[width + 1];
 			zNeg = new float[width + 1];
 			yNeg = new int[width + 1];
@@ -159,13 +319,16 @@ public class SEDT implements PlugInFilter {
 			yPos[0] = -1;
 			zPos[0] = Float.MAX_VALUE;
 			kPos = 0;
-			float fx, fxNeg, fxPos, s;
+			float fx, fxNeg, fxPos, s, q, r;
 			for (int x = 0; x < width; x++) {
 				fx = get(x);
+				// positions are scaled by the voxel spacing
+				q = x * spacing;
 				fxNeg = fx < 0 ? fx : 0f;
 				for (;;) {
 					// calculate the intersection
-					s = ((fxNeg - x * x) - (fNeg[kNeg] - yNeg[kNeg] * yNeg[kNeg])) / -2 / (x - yNeg[kNeg]);
+					r = yNeg[kNeg] * spacing;
+					s = ((fxNeg - q * q) - (fNeg[kNeg] - r * r)) / -2 / (q - r);
 					if (s > zNeg[kNeg])
 						break;
 					if (--kNeg < 0)
@@ -178,7 +341,8 @@ public class SEDT implements PlugInFilter {
 				fxPos = fx > 0 ? fx : 0f;
 				for (;;) {
 					// calculate the intersection
-					s = ((fxPos + x * x) - (fPos[kPos] + yPos[kPos] * yPos[kPos])) / 2 / (x - yPos[kPos]);
+					r = yPos[kPos] * spacing;
+					s = ((fxPos + q * q) - (fPos[kPos] + r * r)) / 2 / (q - r);
 					if (s > zPos[kPos])
 						break;
 					if (--kPos < 0)
@@ -194,14 +358,19 @@ public class SEDT implements PlugInFilter {
 			// calculate g(x)
 			int iNeg = 0, iPos = 0;
 			for (int x = 0; x < width; x++) {
-				while (zNeg[iNeg + 1] < x)
+				q = x * spacing;
+				while (zNeg[iNeg + 1] < q)
 					iNeg++;
-				while (zPos[iPos + 1] < x)
+				while (zPos[iPos + 1] < q)
 					iPos++;
-				if (get(x) < 0)
-					set(x, -(x - yNeg[iNeg]) * (x - yNeg[iNeg]) + fNeg[iNeg]);
-				else
-					set(x, (x - yPos[iPos]) * (x - yPos[iPos]) + fPos[iPos]);
+				if (get(x) < 0) {
+					r = q - yNeg[iNeg] * spacing;
+					set(x, -r * r + fNeg[iNeg]);
+				}
+				else {
+					r = q - yPos[iPos] * spacing;
+					set(x, r * r + fPos[iPos]);
+				}
 			}
 		}
 
@@ -209,76 +378,104 @@ public class SEDT implements PlugInFilter {
 
 		abstract void set(int column, float value);
 
-		final void compute() {
-			while (nextRow()) {
+		void compute(int startRow, int endRow) {
+			// report the progress in steps of about TILE_SIZE voxels
+			int pending = 0;
+			for (int row = startRow; row < endRow; row++) {
+				setRow(row);
 				computeRow();
-				if (total > 0) {
-					current += width;
-					IJ.showProgress(current, total);
+				pending += width;
+				if (pending >= TILE_SIZE && total > 0) {
+					addProgress(pending);
+					pending = 0;
 				}
 			}
+			if (pending > 0 && total > 0)
+				addProgress(pending);
 		}
 
-		abstract boolean nextRow();
+		abstract void setRow(int row);
 	}
 
+	/*
+	 * The Z pass would gather one voxel from each of the d slices
+	 * per row. To avoid that strided access, a tile of adjacent
+	 * columns is copied into a contiguous block (one row of length
+	 * d per column), transformed in place and scattered back.
+	 */
 	class Z extends EDTBase {
-		byte[][] inSlice;
+		Object[] inSlice;
 		float[][] outSlice;
-		int offset;
+		float[] block;
+		int tile, offset;
 
 		Z(ImageStack in, ImageStack out) {
-			super(d);
-			inSlice = new byte[d][];
+			super(d, spacingZ);
+			inSlice = new Object[d];
 			outSlice = new float[d][];
 			for (int i = 0; i < d; i++) {
-				inSlice[i] = (byte[])in.getPixels(i + 1);
+				inSlice[i] = in.getPixels(i + 1);
 				outSlice[i] = (float[])out.getPixels(i + 1);
 			}
-			offset = -1;
+			tile = Math.max(1, Math.min(MAX_TILE, TILE_SIZE / d));
+			block = new float[tile * d];
 		}
 
 		final float get(int x) {
-			return inSlice[x][offset] == 0 ? -Float.MAX_VALUE : Float.MAX_VALUE;
+			return block[offset + x];
 		}
 
 		final void set(int x, float value) {
-			outSlice[x][offset] = value;
+			block[offset + x] = value;
+		}
+
+		final void setRow(int row) {
+			offset = row * d;
 		}
 
-		final boolean nextRow() {
-			return ++offset < w * h;
+		void compute(int startRow, int endRow) {
+			for (int start = startRow; start < endRow; start += tile) {
+				int count = Math.min(tile, endRow - start);
+				for (int z = 0; z < d; z++)
+					foreground.gather(inSlice[z], start, count,
+						block, z, d, Float.MAX_VALUE, -Float.MAX_VALUE);
+				for (int i = 0; i < count; i++) {
+					setRow(i);
+					computeRow();
+				}
+				for (int z = 0; z < d; z++) {
+					float[] pixels = outSlice[z];
+					for (int i = 0, j = z; i < count; i++, j += d)
+						pixels[start + i] = block[j];
+				}
+				if (total > 0)
+					addProgress(width * count);
+			}
 		}
 	}
 
 	abstract class OneDimension extends EDTBase {
-		ImageStack stack;
+		float[][] slices;
 		float[] slice;
-		int offset, lastOffset, rowStride, columnStride, sliceIndex;
+		int offset, rowsPerSlice, rowStride, columnStride;
 
 		OneDimension(ImageStack out, boolean iterateX) {
-			super(iterateX ? w : h);
-			stack = out;
+			super(iterateX ? w : h, iterateX ? spacingX : spacingY);
+			slices = new float[d][];
+			for (int i = 0; i < d; i++)
+				slices[i] = (float[])out.getPixels(i + 1);
 			columnStride = iterateX ? 1 : w;
 			rowStride = iterateX ? w : 1;
-			offset = w * h;
-			lastOffset = rowStride * (iterateX ? h : w);
-			sliceIndex = -1;
+			rowsPerSlice = iterateX ? h : w;
 		}
 
 		final float get(int x) {
 			return slice[x * columnStride + offset];
 		}
 
-		final boolean nextRow() {
-			offset += rowStride;
-			if (offset >= lastOffset) {
-				if (++sliceIndex >= d)
-					return false;
-				offset = 0;
-				slice = (float[])stack.getPixels(sliceIndex + 1);
-			}
-			return true;
+		final void setRow(int row) {
+			slice = slices[row / rowsPerSlice];
+			offset = (row % rowsPerSlice) * rowStride;
 		}
 	}
 
@@ -293,15 +490,20 @@ public class SEDT implements PlugInFilter {
 	}
 
 	class X extends OneDimension {
+		float minValue, maxValue;
+		// the boundary lies half a voxel away from the voxel centers
+		float halfVoxel = 0.5f * Math.min(spacingX,
+				Math.min(spacingY, spacingZ));
+
 		X(ImageStack out) {
 			super(out, true);
 		}
 
 		final void set(int x, float value) {
 			if (value < 0)
-				value = 0.5f - (float)Math.sqrt(-value);
+				value = halfVoxel - (float)Math.sqrt(-value);
 			else
-				value = -0.5f + (float)Math.sqrt(value);
+				value = -halfVoxel + (float)Math.sqrt(value);
 			slice[x * columnStride + offset] = value;
 			// Update minimum and maximum values for the contrast
 			if (value < minValue)
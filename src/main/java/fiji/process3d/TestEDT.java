@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2009 - 2025 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package fiji.process3d;
+
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/*
+ * Correctness harness and benchmark for the distance transforms.
+ *
+ * The transforms are run on synthetic volumes (random spheres, thin
+ * sheets and single points). On small volumes, the results of every
+ * variant (tiled, multi-threaded, streaming, anisotropic) are compared
+ * to a brute-force reference; on larger volumes, the variants are
+ * timed for increasing sizes and thread counts.
+ */
+public class TestEDT
+{
+	protected static ImageStack randomSpheres(final int w, final int h, final int d, final int count, final long seed) {
+		final Random rnd = new Random(seed);
+		final int[][] spheres = new int[count][4];
+		for (int i = 0; i < count; ++i) {
+			spheres[i][0] = rnd.nextInt(w);
+			spheres[i][1] = rnd.nextInt(h);
+			spheres[i][2] = rnd.nextInt(d);
+			spheres[i][3] = 1 + rnd.nextInt(1 + Math.min(w, Math.min(h, d)) / 4);
+		}
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; ++z) {
+			final byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; ++y)
+				for (int x = 0; x < w; ++x)
+					for (final int[] s : spheres) {
+						final int dx = x - s[0], dy = y - s[1], dz = z - s[2];
+						if (dx * dx + dy * dy + dz * dz <= s[3] * s[3]) {
+							pixels[x + w * y] = (byte)255;
+							break;
+						}
+					}
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	/* everything is foreground, except for a few one-voxel thin sheets */
+	protected static ImageStack thinSheets(final int w, final int h, final int d, final int spacing) {
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; ++z) {
+			final byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; ++y)
+				for (int x = 0; x < w; ++x)
+					if ((x + 2 * y + 3 * z) % spacing != 0)
+						pixels[x + w * y] = (byte)255;
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	/* everything is foreground, except for a single voxel */
+	protected static ImageStack singlePoint(final int w, final int h, final int d) {
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; ++z) {
+			final byte[] pixels = new byte[w * h];
+			for (int i = 0; i < w * h; ++i)
+				if (z != d / 2 || i != w * (h / 2) + w / 2)
+					pixels[i] = (byte)255;
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	/*
+	 * For every voxel, the distance to the nearest voxel of the
+	 * other kind (foreground vs background); if signed, foreground
+	 * voxels get the distance minus half a voxel, background voxels
+	 * the negative distance plus half a voxel, like SEDT.
+	 */
+	protected static float[][] bruteForce(final ImageStack stack, final double sx, final double sy, final double sz, final boolean signed) {
+		final int w = stack.getWidth(), h = stack.getHeight(), d = stack.getSize();
+		final float[][] result = new float[d][w * h];
+		for (int z = 0; z < d; ++z)
+			for (int y = 0; y < h; ++y)
+				for (int x = 0; x < w; ++x) {
+					final boolean inside = ((byte[])stack.getPixels(z + 1))[x + w * y] != 0;
+					if (!inside && !signed)
+						continue;
+					double min = Double.MAX_VALUE;
+					for (int z2 = 0; z2 < d; ++z2) {
+						final byte[] pixels = (byte[])stack.getPixels(z2 + 1);
+						for (int y2 = 0; y2 < h; ++y2)
+							for (int x2 = 0; x2 < w; ++x2) {
+								if ((pixels[x2 + w * y2] != 0) == inside)
+									continue;
+								final double dx = (x - x2) * sx, dy = (y - y2) * sy, dz = (z - z2) * sz;
+								min = Math.min(min, dx * dx + dy * dy + dz * dz);
+							}
+					}
+					final double distance = min == Double.MAX_VALUE ? Float.MAX_VALUE : Math.sqrt(min);
+					result[z][x + w * y] = (float)(!signed ? distance : inside ? distance - 0.5 : 0.5 - distance);
+				}
+		return result;
+	}
+
+	protected static boolean compare(final String name, final ImageStack stack, final float[][] reference) {
+		float maxError = 0;
+		for (int z = 0; z < reference.length; ++z) {
+			final float[] pixels = (float[])stack.getProcessor(z + 1).getPixels();
+			for (int i = 0; i < pixels.length; ++i) {
+				if (reference[z][i] >= Float.MAX_VALUE / 2 && pixels[i] >= Float.MAX_VALUE / 2)
+					continue;
+				maxError = Math.max(maxError, Math.abs(pixels[i] - reference[z][i]));
+			}
+		}
+		final boolean success = maxError < 1e-3f;
+		System.out.println(name + (success ? " ok" : " FAILED") + " (max error " + maxError + ")");
+		return success;
+	}
+
+	protected static boolean testCorrectness(final String name, final ImageStack stack) throws IOException {
+		boolean success = true;
+		final float[][] reference = bruteForce(stack, 1, 1, 1, false);
+		success &= compare(name + ": EDT", new EDT().compute(stack).getStack(), reference);
+
+		final File file = File.createTempFile("edt", ".raw");
+		try {
+			final EDT streaming = new EDT();
+			streaming.setBlockSize(stack.getSize() * 17);
+			success &= compare(name + ": streaming EDT", streaming.compute(stack, file).getStack(), reference);
+		} finally {
+			file.delete();
+		}
+
+		final float[][] anisotropic = bruteForce(stack, 0.8, 1.2, 3, false);
+		success &= compare(name + ": anisotropic EDT", new EDT().compute(stack, 0.8, 1.2, 3).getStack(), anisotropic);
+
+		final float[][] signed = bruteForce(stack, 1, 1, 1, true);
+		for (int threads = 1; threads <= 4; threads *= 2) {
+			final SEDT sedt = new SEDT();
+			sedt.setNumThreads(threads);
+			success &= compare(name + ": SEDT (" + threads + " threads)", sedt.compute(stack).getStack(), signed);
+		}
+		return success;
+	}
+
+	protected static void benchmark(final String name, final ImageStack stack, final int repeats) {
+		final int maxThreads = Runtime.getRuntime().availableProcessors();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < repeats; ++i)
+			new EDT().compute(stack);
+		System.out.println(name + ": EDT took " + (System.currentTimeMillis() - start) / repeats + " ms.");
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final SEDT sedt = new SEDT();
+			sedt.setNumThreads(threads);
+			start = System.currentTimeMillis();
+			for (int i = 0; i < repeats; ++i)
+				sedt.compute(stack);
+			System.out.println(name + ": SEDT (" + threads + " threads) took " + (System.currentTimeMillis() - start) / repeats + " ms.");
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean success = true;
+		success &= testCorrectness("spheres", randomSpheres(19, 17, 13, 5, 435435435));
+		success &= testCorrectness("sheets", thinSheets(19, 17, 13, 7));
+		success &= testCorrectness("point", singlePoint(19, 17, 13));
+		if (success)
+			System.out.println("Correctness tests successfull\n");
+
+		for (int size = 64; size <= 256; size *= 2) {
+			// warm up the JIT before timing
+			benchmark("spheres " + size + "^3", randomSpheres(size, size, size, 20, 1), 1);
+			benchmark("spheres " + size + "^3", randomSpheres(size, size, size, 20, 1), 3);
+			benchmark("sheets " + size + "^3", thinSheets(size, size, size, 31), 3);
+			benchmark("point " + size + "^3", singlePoint(size, size, size), 3);
+		}
+
+		System.exit(success ? 0 : 1);
+	}
+}